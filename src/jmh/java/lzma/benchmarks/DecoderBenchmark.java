@@ -0,0 +1,148 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.benchmarks;
+
+import lzma.sdk.lzma.Encoder;
+import lzma.streams.Lzma;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decompression throughput on the test resources, plus a synthetic input made of long repeated runs
+ * which mostly exercises the match copy path. Each input is compressed with the default literal and
+ * position bits (lc=3, lp=0, pb=2) and with the ones suited to 32-bit aligned data (lc=0, lp=2, pb=2).
+ *
+ * @author Julien Ponge
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark
+{
+    @Param({"plaintext.txt", "ajar.jar", "doc.pdf", "runs"})
+    public String data;
+
+    @Param({"3,0,2", "0,2,2"})
+    public String lcLpPb;
+
+    private byte[] compressed;
+
+    @Setup
+    public void setUp()
+            throws IOException
+    {
+        byte[] source = load(data);
+        String[] bits = lcLpPb.split(",");
+        Encoder encoder = new Encoder();
+        encoder.setDictionarySize(1 << 20);
+        encoder.setLcLpPb(Integer.parseInt(bits[0]), Integer.parseInt(bits[1]), Integer.parseInt(bits[2]));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeCoderProperties(out);
+        for (int i = 0; i < 8; i++)
+        {
+            out.write((int) ((long) source.length >>> (8 * i)) & 0xFF);
+        }
+        encoder.code(new ByteArrayInputStream(source), out, -1, -1, null);
+        compressed = out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] decompress()
+            throws IOException
+    {
+        return Lzma.decompress(compressed);
+    }
+
+    static byte[] load(String name)
+            throws IOException
+    {
+        if ("runs".equals(name))
+        {
+            return runs(1 << 20);
+        }
+        InputStream in = DecoderBenchmark.class.getClassLoader().getResourceAsStream(name);
+        if (in == null)
+        {
+            throw new IOException("Missing test resource: " + name);
+        }
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // short random phrases repeated many times, at short and long distances
+    private static byte[] runs(int size)
+    {
+        Random random = new Random(42);
+        byte[] phrases = new byte[4096];
+        random.nextBytes(phrases);
+        byte[] out = new byte[size];
+        int pos = 0;
+        while (pos < size)
+        {
+            int len = Math.min(size - pos, 16 + random.nextInt(512));
+            if (random.nextBoolean())
+            {
+                // a byte or a short pattern repeated, as in padding or tables
+                int period = 1 + random.nextInt(8);
+                System.arraycopy(phrases, random.nextInt(phrases.length - period), out, pos, period);
+                for (int i = period; i < len; i++)
+                {
+                    out[pos + i] = out[pos + i - period];
+                }
+            }
+            else
+            {
+                int from = random.nextInt(phrases.length - 512);
+                System.arraycopy(phrases, from, out, pos, len);
+            }
+            pos += len;
+        }
+        return out;
+    }
+}
@@ -48,6 +48,9 @@ public class BinTree extends InWindow
 
     private final boolean HASH_ARRAY;
 
+    private boolean _holdTail;
+    private int _pendingCount;
+
     static final int kHash2Size = 1 << 10;
     static final int kHash3Size = 1 << 16;
     static final int kBT2HashSize = 1 << 16;
@@ -76,10 +79,51 @@ public class BinTree extends InWindow
 
     public void init() throws IOException
     {
-        super.init();
+        init(null);
+    }
+
+    /**
+     * Starts with the last history size bytes of <code>preset</code>, or nothing if it is <code>null</code>, in
+     * the tree: the stream can then be matched against them as if they had come right before it.
+     */
+    public void init(byte[] preset) throws IOException
+    {
+        int len = (preset == null) ? 0 : Math.min(preset.length, _cyclicBufferSize - 1);
+        super.init(preset, len);
         Arrays.fill(_hash, 0, _hashSizeSum, kEmptyHashValue);
         _cyclicBufferPos = 0;
+        _pendingCount = 0;
         reduceOffsets(-1);
+        if (len > 0)
+        {
+            skip(len);
+        }
+    }
+
+    /**
+     * When set, the positions too close to the end of the input for a full-length search are passed over
+     * instead of being inserted in the tree: a shortened comparison would order them wrongly once more input
+     * follows. They are inserted by {@link #resume()}.
+     */
+    public void setHoldTail(boolean holdTail)
+    {
+        _holdTail = holdTail;
+    }
+
+    /**
+     * Goes on with the stream set since the previous input ended, keeping the history as with a single stream.
+     */
+    public void resume() throws IOException
+    {
+        super.resume();
+        int pending = _pendingCount;
+        _pendingCount = 0;
+        if (pending > 0)
+        {
+            _pos -= pending;
+            _cyclicBufferPos = ((_cyclicBufferPos - pending) % _cyclicBufferSize + _cyclicBufferSize) % _cyclicBufferSize;
+            skip(pending);
+        }
     }
 
     public void movePos() throws IOException
@@ -154,8 +198,12 @@ public class BinTree extends InWindow
         else
         {
             lenLimit = _streamPos - _pos;
-            if (lenLimit < kMinMatchCheck)
+            if (lenLimit < kMinMatchCheck || _holdTail)
             {
+                if (_holdTail)
+                {
+                    _pendingCount++;
+                }
                 movePos();
                 return 0;
             }
@@ -304,8 +352,12 @@ public class BinTree extends InWindow
             else
             {
                 lenLimit = _streamPos - _pos;
-                if (lenLimit < kMinMatchCheck)
+                if (lenLimit < kMinMatchCheck || _holdTail)
                 {
+                    if (_holdTail)
+                    {
+                        _pendingCount++;
+                    }
                     movePos();
                     continue;
                 }
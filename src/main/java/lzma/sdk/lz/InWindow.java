@@ -30,11 +30,13 @@
 package lzma.sdk.lz;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class InWindow
 {
     byte[] _bufferBase; // pointer to buffer with data
     private java.io.InputStream _stream;
+    private ByteBuffer _source;
     private int _posLimit;  // offset (from _buffer) of first byte when new block reading must be done
     private boolean _streamEndWasReached; // if (true) then _streamPos shows real end of stream
 
@@ -77,7 +79,19 @@ public class InWindow
             {
                 return;
             }
-            int numReadBytes = _stream.read(_bufferBase, _bufferOffset + _streamPos, size);
+            int numReadBytes;
+            if (_source != null)
+            {
+                numReadBytes = _source.hasRemaining() ? Math.min(size, _source.remaining()) : -1;
+                if (numReadBytes > 0)
+                {
+                    _source.get(_bufferBase, _bufferOffset + _streamPos, numReadBytes);
+                }
+            }
+            else
+            {
+                numReadBytes = _stream.read(_bufferBase, _bufferOffset + _streamPos, size);
+            }
             if (numReadBytes == -1)
             {
                 _posLimit = _streamPos;
@@ -90,6 +104,11 @@ public class InWindow
                 _streamEndWasReached = true;
                 return;
             }
+            if (numReadBytes == 0)
+            {
+                // non-blocking source with nothing available right now
+                return;
+            }
             _streamPos += numReadBytes;
             if (_streamPos >= _pos + _keepSizeAfter)
             {
@@ -120,19 +139,52 @@ public class InWindow
     public void setStream(java.io.InputStream stream)
     {
         _stream = stream;
+        _source = null;
+    }
+
+    /**
+     * Makes the window read its data from <code>source</code>, heap or direct, advancing its position.
+     */
+    public void setBuffer(ByteBuffer source)
+    {
+        _source = source;
+        _stream = null;
     }
 
     public void releaseStream()
     {
         _stream = null;
+        _source = null;
     }
 
     void init() throws IOException
+    {
+        init(null, 0);
+    }
+
+    // the first len bytes of preset are put in the buffer ahead of the stream, as if they had been read from it
+    void init(byte[] preset, int len) throws IOException
     {
         _bufferOffset = 0;
         _pos = 0;
         _streamPos = 0;
         _streamEndWasReached = false;
+        if (len > 0)
+        {
+            System.arraycopy(preset, preset.length - len, _bufferBase, 0, len);
+            _streamPos = len;
+        }
+        readBlock();
+    }
+
+    // reads on after the end of the previous stream, as if the new one followed it
+    void resume() throws IOException
+    {
+        _streamEndWasReached = false;
+        if (_bufferOffset + _pos > _pointerToLastSafePosition)
+        {
+            moveBlock();
+        }
         readBlock();
     }
 
@@ -158,12 +210,9 @@ public class InWindow
     // index + limit have not to exceed _keepSizeAfter;
     public int getMatchLen(int index, int distance, int limit)
     {
-        if (_streamEndWasReached)
+        if ((_pos + index) + limit > _streamPos)
         {
-            if ((_pos + index) + limit > _streamPos)
-            {
-                limit = _streamPos - (_pos + index);
-            }
+            limit = _streamPos - (_pos + index);
         }
         distance++;
         // Byte *pby = _buffer + (size_t)_pos + index;
@@ -0,0 +1,263 @@
+/*
+ *  Copyright (c) 2009 Julien Ponge. All rights reserved.
+ *
+ *  <julien.ponge@gmail.com>
+ *  http://julien.ponge.info/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  This work is based on the LZMA SDK by Igor Pavlov.
+ *  The LZMA SDK is placed under the public domain, and can be obtained from
+ *
+ *      http://www.7-zip.org/sdk.html
+ *
+ *  The LzmaInputStream and LzmaOutputStream classes were inspired by the
+ *  work of Christopher League, although they are not derivative works.
+ *
+ *      http://contrapunctus.net/league/haques/lzmajio/
+ */
+
+package lzma.sdk.lz;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output window that is the output file itself: the file is memory-mapped in segments as it grows,
+ * bytes are decoded straight into the mapping and matches are copied within it. Neither a heap window
+ * nor a write pass is needed, whatever the dictionary size. Segments that fall out of the dictionary
+ * range are dropped, leaving them to be unmapped by the garbage collector.
+ * <p>
+ * It is meant to be given to {@link lzma.sdk.lzma.Decoder#code(java.io.InputStream, OutWindow, long)},
+ * followed by {@link #finish()}.
+ */
+public class MappedOutWindow extends OutWindow
+{
+    private static final int kSegmentBits = 26;
+    private static final int kSegmentSize = 1 << kSegmentBits;
+    private static final int kSegmentMask = kSegmentSize - 1;
+    // shorter matches are copied byte by byte, which is cheaper than setting up buffer views
+    private static final int kBulkCopyMin = 32;
+
+    // FileChannel cannot unmap, and some platforms, Windows among them, refuse to truncate a mapped file
+    private static final Object kUnsafe;
+    private static final Method kInvokeCleaner;
+
+    static
+    {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try
+        {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (Exception e)
+        {
+            // left to the garbage collector
+        }
+        kUnsafe = unsafe;
+        kInvokeCleaner = invokeCleaner;
+    }
+
+    private final FileChannel _channel;
+    private final long _start;
+    private final List<MappedByteBuffer> _segments = new ArrayList<MappedByteBuffer>();
+    private MappedByteBuffer _current;
+    private long _currentBase;
+    private long _pos;
+    private int _historySize;
+
+    /**
+     * @param channel a channel opened for reading and writing
+     * @param start   where the output starts in the file
+     */
+    public MappedOutWindow(FileChannel channel, long start)
+    {
+        _channel = channel;
+        _start = start;
+    }
+
+    @Override
+    public void create(int windowSize)
+    {
+        _historySize = windowSize;
+    }
+
+    @Override
+    public void init(boolean solid)
+    {
+        if (!solid)
+        {
+            _pos = 0;
+            _current = null;
+            _currentBase = 0;
+        }
+    }
+
+    @Override
+    public void reset()
+    {
+        init(false);
+    }
+
+    /**
+     * Nothing to do: the decoded bytes are already in the file mapping.
+     */
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void putByte(byte b) throws IOException
+    {
+        moveToCurrent();
+        _current.put((int) (_pos - _currentBase), b);
+        _pos++;
+    }
+
+    @Override
+    public byte getByte(int distance) throws IOException
+    {
+        long pos = _pos - distance - 1;
+        if (_current != null && pos >= _currentBase)
+        {
+            return _current.get((int) (pos - _currentBase));
+        }
+        return segment(pos).get((int) (pos & kSegmentMask));
+    }
+
+    @Override
+    public void copyBlock(int distance, int len) throws IOException
+    {
+        if (len < kBulkCopyMin)
+        {
+            for (; len != 0; len--)
+            {
+                putByte(getByte(distance));
+            }
+            return;
+        }
+        while (len != 0)
+        {
+            long from = _pos - distance - 1;
+            // a match overlapping its own output repeats its first distance + 1 bytes, which are already there
+            int n = Math.min(len, distance + 1);
+            n = Math.min(n, kSegmentSize - (int) (from & kSegmentMask));
+            n = Math.min(n, kSegmentSize - (int) (_pos & kSegmentMask));
+            moveToCurrent();
+            ByteBuffer src = segment(from).duplicate();
+            src.position((int) (from & kSegmentMask));
+            src.limit(src.position() + n);
+            ByteBuffer dst = _current.duplicate();
+            dst.position((int) (_pos - _currentBase));
+            dst.put(src);
+            _pos += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return the number of bytes decoded so far
+     */
+    public long getSize()
+    {
+        return _pos;
+    }
+
+    /**
+     * Writes the mapped contents back to the storage device, unmaps them and cuts the file right after the
+     * decoded data, since the last segment may extend past it. It must be called even if decoding fails.
+     *
+     * @return the number of bytes decoded
+     */
+    public long finish() throws IOException
+    {
+        for (MappedByteBuffer segment : _segments)
+        {
+            if (segment != null)
+            {
+                segment.force();
+                unmap(segment);
+            }
+        }
+        _segments.clear();
+        _current = null;
+        _channel.truncate(_start + _pos);
+        return _pos;
+    }
+
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        if (kInvokeCleaner != null)
+        {
+            try
+            {
+                kInvokeCleaner.invoke(kUnsafe, buffer);
+            }
+            catch (Exception e)
+            {
+                // left to the garbage collector
+            }
+        }
+    }
+
+    private void moveToCurrent() throws IOException
+    {
+        if (_current == null || _pos - _currentBase >= kSegmentSize)
+        {
+            _current = segment(_pos);
+            _currentBase = _pos & ~((long) kSegmentMask);
+        }
+    }
+
+    private MappedByteBuffer segment(long pos) throws IOException
+    {
+        if (pos < 0)
+        {
+            throw new IOException("Match distance beyond the start of the output");
+        }
+        int index = (int) (pos >>> kSegmentBits);
+        while (_segments.size() <= index)
+        {
+            long base = (long) _segments.size() << kSegmentBits;
+            _segments.add(_channel.map(FileChannel.MapMode.READ_WRITE, _start + base, kSegmentSize));
+            // segments entirely out of reach of the longest match are not needed anymore
+            for (int i = 0; ((long) (i + 1) << kSegmentBits) + _historySize <= base; i++)
+            {
+                MappedByteBuffer old = _segments.get(i);
+                if (old != null)
+                {
+                    old.force();
+                    _segments.set(i, null);
+                }
+            }
+        }
+        MappedByteBuffer segment = _segments.get(index);
+        if (segment == null)
+        {
+            throw new IOException("Match distance beyond the dictionary size");
+        }
+        return segment;
+    }
+}
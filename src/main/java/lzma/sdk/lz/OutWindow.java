@@ -30,18 +30,30 @@
 package lzma.sdk.lz;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class OutWindow
 {
+    private static final int kMinBulkCopy = 16;
+
     private byte[] _buffer;
     private int _pos;
     private int _windowSize = 0;
     private int _streamPos;
     private java.io.OutputStream _stream;
+    private byte[] _target;
+    private int _targetPos;
+    private ByteBuffer _targetBuffer;
+    private boolean _direct;
+    private byte[] _ownBuffer;
+    private int _ownWindowSize;
 
+    /**
+     * Sets the window size, reusing the buffer when it is large enough.
+     */
     public void create(int windowSize)
     {
-        if (_buffer == null || _windowSize != windowSize)
+        if (_buffer == null || _buffer.length < windowSize)
         {
             _buffer = new byte[windowSize];
         }
@@ -62,6 +74,86 @@ public class OutWindow
         _stream = null;
     }
 
+    /**
+     * Makes {@link #flush()} copy the pending bytes into <code>target</code> starting at
+     * <code>off</code> instead of writing them to a stream.
+     */
+    public void setTarget(byte[] target, int off)
+    {
+        _target = target;
+        _targetPos = off;
+    }
+
+    /**
+     * Makes {@link #flush()} put the pending bytes into <code>target</code>, heap or direct, instead of
+     * writing them to a stream. A {@link java.nio.BufferOverflowException} is thrown if it fills up.
+     */
+    public void setTarget(ByteBuffer target)
+    {
+        _targetBuffer = target;
+    }
+
+    /**
+     * Makes <code>target[off..off+len)</code> the window itself: bytes are decoded straight into it, with
+     * nothing staged in the window buffer nor copied on {@link #flush()}. Since it cannot wrap around, the
+     * whole output must fit. The window buffer is restored by {@link #releaseTarget()}.
+     */
+    public void setDirectTarget(byte[] target, int off, int len)
+    {
+        _direct = true;
+        _ownBuffer = _buffer;
+        _ownWindowSize = _windowSize;
+        _buffer = target;
+        _windowSize = off + len;
+        _pos = off;
+        _streamPos = off;
+    }
+
+    /**
+     * Flushes the pending bytes into the target array or buffer and forgets about it.
+     *
+     * @return the position right after the last byte copied, or decoded, into the target array
+     */
+    public int releaseTarget() throws IOException
+    {
+        if (_direct)
+        {
+            int pos = _pos;
+            restoreBuffer();
+            return pos;
+        }
+        flush();
+        _target = null;
+        _targetBuffer = null;
+        return _targetPos;
+    }
+
+    private void restoreBuffer()
+    {
+        _buffer = _ownBuffer;
+        _windowSize = _ownWindowSize;
+        _ownBuffer = null;
+        _direct = false;
+        _pos = 0;
+        _streamPos = 0;
+    }
+
+    /**
+     * Discards the pending bytes and forgets about any stream or target, keeping the buffer.
+     */
+    public void reset()
+    {
+        if (_direct)
+        {
+            restoreBuffer();
+        }
+        _pos = 0;
+        _streamPos = 0;
+        _stream = null;
+        _target = null;
+        _targetBuffer = null;
+    }
+
     public void init(boolean solid)
     {
         if (!solid)
@@ -74,11 +166,24 @@ public class OutWindow
     public void flush() throws IOException
     {
         int size = _pos - _streamPos;
-        if (size == 0)
+        if (size == 0 || _direct)
         {
+            _streamPos = _pos;
             return;
         }
-        _stream.write(_buffer, _streamPos, size);
+        if (_stream != null)
+        {
+            _stream.write(_buffer, _streamPos, size);
+        }
+        else if (_target != null)
+        {
+            System.arraycopy(_buffer, _streamPos, _target, _targetPos, size);
+            _targetPos += size;
+        }
+        else if (_targetBuffer != null)
+        {
+            _targetBuffer.put(_buffer, _streamPos, size);
+        }
         if (_pos >= _windowSize)
         {
             _pos = 0;
@@ -93,13 +198,41 @@ public class OutWindow
         {
             pos += _windowSize;
         }
-        for (; len != 0; len--)
+        while (len != 0)
         {
+            // copy in chunks that do not cross the end of the window, neither on the source nor the destination side
+            int size = Math.min(len, Math.min(_windowSize - _pos, _windowSize - pos));
+            if (size < kMinBulkCopy)
+            {
+                // most matches are only a few bytes long: a plain loop beats the System.arraycopy call
+                for (int i = 0; i < size; i++)
+                {
+                    _buffer[_pos + i] = _buffer[pos + i];
+                }
+            }
+            else if (pos < _pos && _pos - pos < size)
+            {
+                // the match overlaps its own output: its first bytes repeat, each copy doubling the run
+                int dst = _pos;
+                int end = _pos + size;
+                while (dst < end)
+                {
+                    int n = Math.min(dst - pos, end - dst);
+                    System.arraycopy(_buffer, pos, _buffer, dst, n);
+                    dst += n;
+                }
+            }
+            else
+            {
+                System.arraycopy(_buffer, pos, _buffer, _pos, size);
+            }
+            _pos += size;
+            pos += size;
+            len -= size;
             if (pos >= _windowSize)
             {
                 pos = 0;
             }
-            _buffer[_pos++] = _buffer[pos++];
             if (_pos >= _windowSize)
             {
                 flush();
@@ -116,7 +249,35 @@ public class OutWindow
         }
     }
 
-    public byte getByte(int distance)
+    /**
+     * Copies the last <code>len</code> bytes put in the window, oldest first, into <code>dst</code>;
+     * <code>len</code> may not exceed the window size nor the number of bytes put so far.
+     */
+    public void getHistory(byte[] dst, int len)
+    {
+        int start = _pos - len;
+        if (start < 0)
+        {
+            System.arraycopy(_buffer, start + _windowSize, dst, 0, -start);
+            System.arraycopy(_buffer, 0, dst, -start, _pos);
+        }
+        else
+        {
+            System.arraycopy(_buffer, start, dst, 0, len);
+        }
+    }
+
+    /**
+     * Fills the window with <code>history</code>, as if these bytes had just been put and flushed.
+     */
+    public void setHistory(byte[] history, int len)
+    {
+        System.arraycopy(history, 0, _buffer, 0, len);
+        _pos = (len >= _windowSize) ? 0 : len;
+        _streamPos = _pos;
+    }
+
+    public byte getByte(int distance) throws IOException
     {
         int pos = _pos - distance - 1;
         if (pos < 0)
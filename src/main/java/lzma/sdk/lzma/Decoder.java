@@ -33,263 +33,775 @@ import lzma.sdk.lz.OutWindow;
 import lzma.sdk.rangecoder.BitTreeDecoder;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 public class Decoder
 {
-    class LenDecoder
+    // All the probabilities live in m_Probs, at these offsets; the literal coders come last since
+    // their number depends on lc and lp.
+    private static final int kIsMatch = 0;
+    private static final int kIsRep = kIsMatch + (Base.kNumStates << Base.kNumPosStatesBitsMax);
+    private static final int kIsRepG0 = kIsRep + Base.kNumStates;
+    private static final int kIsRepG1 = kIsRepG0 + Base.kNumStates;
+    private static final int kIsRepG2 = kIsRepG1 + Base.kNumStates;
+    private static final int kIsRep0Long = kIsRepG2 + Base.kNumStates;
+    private static final int kPosSlot = kIsRep0Long + (Base.kNumStates << Base.kNumPosStatesBitsMax);
+    private static final int kSpecPos = kPosSlot + (Base.kNumLenToPosStates << Base.kNumPosSlotBits);
+    private static final int kAlign = kSpecPos + Base.kNumFullDistances - Base.kEndPosModelIndex;
+    private static final int kLenCoder = kAlign + Base.kAlignTableSize;
+    private static final int kRepLenCoder = kLenCoder + LenCoder.kSize;
+    private static final int kLiteral = kRepLenCoder + LenCoder.kSize;
+    private static final int kLiteralCoderSize = 0x300;
+
+    // offsets within a length coder
+    private static final class LenCoder
     {
-        final short[] m_Choice = new short[2];
-        final BitTreeDecoder[] m_LowCoder = new BitTreeDecoder[Base.kNumPosStatesMax];
-        final BitTreeDecoder[] m_MidCoder = new BitTreeDecoder[Base.kNumPosStatesMax];
-        final BitTreeDecoder m_HighCoder = new BitTreeDecoder(Base.kNumHighLenBits);
-        int m_NumPosStates = 0;
+        static final int kChoice = 0;
+        static final int kChoice2 = 1;
+        static final int kLow = 2;
+        static final int kMid = kLow + (Base.kNumPosStatesMax << Base.kNumLowLenBits);
+        static final int kHigh = kMid + (Base.kNumPosStatesMax << Base.kNumMidLenBits);
+        static final int kSize = kHigh + (1 << Base.kNumHighLenBits);
+    }
+
+    private final OutWindow m_OwnWindow = new OutWindow();
+    private OutWindow m_OutWindow = m_OwnWindow;
+    private final lzma.sdk.rangecoder.Decoder m_RangeDecoder = new lzma.sdk.rangecoder.Decoder();
+
+    private short[] m_Probs;
+
+    private int m_LiteralContextBits = -1;
+    private int m_LiteralPosMask;
+
+    private int m_DictionarySize = -1;
+    private int m_DictionarySizeCheck = -1;
+
+    private long m_MemoryLimit = -1;
+
+    private static final int kFlushCheckInterval = 1 << 12;
+    private int m_FlushBytes = -1;
+    private long m_FlushNanos = -1;
+
+    private boolean m_Solid;
+    private boolean m_SolidStarted;
+    private long m_History;
+
+    private byte[] m_PresetDictionary;
+
+    private int m_PosStateMask;
+
+    private int m_State;
+    private int m_Rep0, m_Rep1, m_Rep2, m_Rep3;
+    private long m_NowPos64;
+    private byte m_PrevByte;
+    private long m_OutSize;
+    private int m_RemainLen;
+    private boolean m_Finished;
+
+    public Decoder()
+    {
+    }
 
-        public void create(int numPosStates)
+    boolean setDictionarySize(int dictionarySize)
+    {
+        if (dictionarySize < 0)
         {
-            for (; m_NumPosStates < numPosStates; m_NumPosStates++)
-            {
-                m_LowCoder[m_NumPosStates] = new BitTreeDecoder(Base.kNumLowLenBits);
-                m_MidCoder[m_NumPosStates] = new BitTreeDecoder(Base.kNumMidLenBits);
-            }
+            return false;
+        }
+        if (m_DictionarySize != dictionarySize)
+        {
+            m_SolidStarted = false;
+            m_DictionarySize = dictionarySize;
+            m_DictionarySizeCheck = Math.max(m_DictionarySize, 1);
         }
+        return true;
+    }
 
-        public void init()
+    boolean setLcLpPb(int lc, int lp, int pb)
+    {
+        if (lc > Base.kNumLitContextBitsMax || lp > 4 || pb > Base.kNumPosStatesBitsMax)
         {
-            lzma.sdk.rangecoder.Decoder.initBitModels(m_Choice);
-            for (int posState = 0; posState < m_NumPosStates; posState++)
-            {
-                m_LowCoder[posState].init();
-                m_MidCoder[posState].init();
-            }
-            m_HighCoder.init();
+            return false;
         }
+        int size = kLiteral + (kLiteralCoderSize << (lc + lp));
+        if (m_Probs == null || m_Probs.length != size)
+        {
+            m_Probs = new short[size];
+        }
+        if (lc != m_LiteralContextBits || m_LiteralPosMask != (1 << lp) - 1 || m_PosStateMask != (1 << pb) - 1)
+        {
+            m_SolidStarted = false;
+        }
+        m_LiteralContextBits = lc;
+        m_LiteralPosMask = (1 << lp) - 1;
+        m_PosStateMask = (1 << pb) - 1;
+        return true;
+    }
+
+    /**
+     * Caps the memory that the decoder may allocate for a stream, window and probability models included.
+     * Streams needing more are rejected with an {@link IOException} before anything is allocated.
+     *
+     * @param memoryLimit a number of bytes, or -1 for no limit, which is the default
+     */
+    public void setMemoryLimit(long memoryLimit)
+    {
+        m_MemoryLimit = memoryLimit;
+    }
+
+    public long getMemoryLimit()
+    {
+        return m_MemoryLimit;
+    }
 
-        public int decode(lzma.sdk.rangecoder.Decoder rangeDecoder, int posState) throws IOException
+    /**
+     * In solid mode, each stream decoded after the first one continues the previous one: it is decoded against
+     * the same window, and its matches may reach back into the earlier streams, with the probability models
+     * as the previous stream left them. Only the range decoder and the decoder state are started afresh. The
+     * streams must have been encoded by an {@link Encoder} in solid mode, with the same properties.
+     * <p>
+     * The window is sized after the dictionary for the first stream, whatever its size. The run ends with
+     * {@link #reset()}, a change of properties or decoding into another window.
+     */
+    public void setSolid(boolean solid)
+    {
+        m_Solid = solid;
+        if (!solid)
         {
-            if (rangeDecoder.decodeBit(m_Choice, 0) == 0)
-            {
-                return m_LowCoder[posState].decode(rangeDecoder);
-            }
-            int symbol = Base.kNumLowLenSymbols;
-            if (rangeDecoder.decodeBit(m_Choice, 1) == 0)
-            {
-                symbol += m_MidCoder[posState].decode(rangeDecoder);
-            }
-            else
-            {
-                symbol += Base.kNumMidLenSymbols + m_HighCoder.decode(rangeDecoder);
-            }
-            return symbol;
+            m_SolidStarted = false;
         }
     }
 
-    class LiteralDecoder
+    public boolean isSolid()
     {
-        class Decoder2
+        return m_Solid;
+    }
+
+    /**
+     * Makes each stream start with <code>dictionary</code> in its window, as if these bytes had been decoded just
+     * before it, so that its first matches can refer to them. The streams must have been encoded with the same
+     * preset dictionary, which the .lzma header does not record. Only the last dictionary size bytes matter.
+     * In solid mode, only the first stream of a run starts with it.
+     *
+     * @param dictionary the preset dictionary, which is not copied, or <code>null</code> for none
+     */
+    public void setPresetDictionary(byte[] dictionary)
+    {
+        m_PresetDictionary = (dictionary != null && dictionary.length > 0) ? dictionary : null;
+    }
+
+    // a stream of known size never looks further back than its start, or than its preset dictionary, whatever
+    // the dictionary size
+    private int windowSize(long outSize)
+    {
+        int windowSize = Math.max(m_DictionarySizeCheck, (1 << 12));
+        long reach = outSize + ((m_PresetDictionary != null) ? m_PresetDictionary.length : 0);
+        if (outSize >= 0 && reach < windowSize)
         {
-            final short[] m_Decoders = new short[0x300];
+            windowSize = Math.max((int) reach, 1);
+        }
+        return windowSize;
+    }
+
+    // the window is used as is for the preset dictionary, and decoding in place would leave it out
+    private boolean canDecodeInPlace()
+    {
+        return !m_Solid && m_PresetDictionary == null;
+    }
 
-            public void init()
+    private void checkMemoryLimit(int windowSize) throws IOException
+    {
+        long needed = (long) windowSize + 2L * m_Probs.length;
+        if (m_MemoryLimit >= 0 && needed > m_MemoryLimit)
+        {
+            throw new IOException("Decoding needs " + needed + " bytes, over the memory limit of " + m_MemoryLimit);
+        }
+    }
+
+    void init(long outSize) throws IOException
+    {
+        if (m_SolidStarted && m_OutWindow == m_OwnWindow)
+        {
+            // the window and the models carry over from the previous stream, which the new one may refer to
+            m_History += m_NowPos64;
+            m_OutWindow.init(true);
+            m_RangeDecoder.init();
+            return;
+        }
+        // the window is allocated on first use only, so that decoding into another window never allocates it
+        int windowSize = windowSize(m_Solid ? -1 : outSize);
+        checkMemoryLimit((m_OutWindow == m_OwnWindow) ? windowSize : 0);
+        m_OutWindow.create(windowSize);
+        m_OutWindow.init(false);
+        m_History = 0;
+        if (m_PresetDictionary != null)
+        {
+            presetWindow(windowSize);
+        }
+        initModels();
+        m_RangeDecoder.init();
+        m_SolidStarted = m_Solid && m_OutWindow == m_OwnWindow;
+    }
+
+    private void presetWindow(int windowSize) throws IOException
+    {
+        if (m_OutWindow != m_OwnWindow)
+        {
+            throw new IOException("A preset dictionary cannot be used when decoding into another window");
+        }
+        byte[] dictionary = m_PresetDictionary;
+        int len = Math.min(dictionary.length, windowSize);
+        if (len < dictionary.length)
+        {
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - len, dictionary.length);
+        }
+        m_OutWindow.setHistory(dictionary, len);
+        m_History = len;
+    }
+
+    private void initModels()
+    {
+        if (m_Probs != null)
+        {
+            lzma.sdk.rangecoder.Decoder.initBitModels(m_Probs);
+        }
+    }
+
+    /**
+     * Drops the stream being decoded, if any, and reinitializes the probability models so that the decoder can
+     * be reused for another stream without reallocating its window. Pending output is discarded. The settings
+     * other than the properties go back to their defaults: no memory limit, no incremental flushing, no solid
+     * mode and no preset dictionary.
+     */
+    public void reset()
+    {
+        m_OutWindow.reset();
+        m_RangeDecoder.releaseStream();
+        m_RangeDecoder.discardBuffered();
+        initModels();
+        initState(0);
+        m_Solid = false;
+        m_SolidStarted = false;
+        m_History = 0;
+        m_PresetDictionary = null;
+        m_MemoryLimit = -1;
+        m_FlushBytes = -1;
+        m_FlushNanos = -1;
+    }
+
+    /**
+     * Makes {@link #code(java.io.InputStream, java.io.OutputStream, long)} hand the decoded bytes over to the
+     * output stream, and flush it, in small increments instead of whenever the window fills up, which with
+     * a large dictionary delays the first bytes by megabytes. Only the output timing changes.
+     *
+     * @param bytes  the most decoded bytes held back, or -1 for no such bound
+     * @param millis the longest time decoded bytes are held back, or -1 for no such bound; it is checked
+     *               every 4 KB of output
+     */
+    public void setFlushPolicy(int bytes, long millis)
+    {
+        m_FlushBytes = (bytes > 0) ? bytes : -1;
+        m_FlushNanos = (millis >= 0) ? TimeUnit.MILLISECONDS.toNanos(millis) : -1;
+    }
+
+    /**
+     * Decodes a stream, reading no byte past its end.
+     *
+     * @param inStream  the compressed data, positioned right after the .lzma header
+     * @param outStream receives the uncompressed data
+     * @param outSize   the uncompressed size, or -1 if the stream is terminated by an end marker
+     * @return false if the compressed data is corrupted
+     */
+    public boolean code(java.io.InputStream inStream, java.io.OutputStream outStream,
+                        long outSize) throws IOException
+    {
+        return code(inStream, outStream, outSize, false);
+    }
+
+    /**
+     * Same as {@link #code(java.io.InputStream, java.io.OutputStream, long)}, the compressed data being read in
+     * blocks if <code>readAhead</code> is set, which is much faster. Bytes following the stream may then be read
+     * ahead: they can be recovered with {@link #readBufferedInput(byte[], int, int)}.
+     */
+    public boolean code(java.io.InputStream inStream, java.io.OutputStream outStream,
+                        long outSize, boolean readAhead) throws IOException
+    {
+        m_RangeDecoder.setStream(inStream, readAhead);
+        m_OutWindow.setStream(outStream);
+        init(outSize);
+        initState(outSize);
+
+        long end = outSize < 0 ? Long.MAX_VALUE : outSize;
+        if (!((m_FlushBytes < 0 && m_FlushNanos < 0) ? decode(end) : decodeFlushing(end, outStream)))
+        {
+            // m_OutWindow.flush();
+            return false;
+        }
+        m_OutWindow.flush();
+        m_OutWindow.releaseStream();
+        m_RangeDecoder.releaseStream();
+        return true;
+    }
+
+    /**
+     * Decodes into <code>window</code> rather than into the decoder's own window, which is then never allocated.
+     * This is how a {@link lzma.sdk.lz.MappedOutWindow} decodes straight into a memory-mapped file.
+     * <p>
+     * The compressed data is read in blocks, so bytes following the stream may be read ahead: they can be
+     * recovered with {@link #readBufferedInput(byte[], int, int)}.
+     *
+     * @param inStream the compressed data, positioned right after the .lzma header
+     * @param window   receives the uncompressed data
+     * @param outSize  the uncompressed size, or -1 if the stream is terminated by an end marker
+     * @return false if the compressed data is corrupted
+     */
+    public boolean code(java.io.InputStream inStream, OutWindow window, long outSize) throws IOException
+    {
+        m_OutWindow = window;
+        m_RangeDecoder.setStream(inStream, true);
+        try
+        {
+            init(outSize);
+            initState(outSize);
+            boolean result = decode(outSize < 0 ? Long.MAX_VALUE : outSize);
+            m_OutWindow.flush();
+            return result;
+        }
+        finally
+        {
+            m_OutWindow = m_OwnWindow;
+            m_RangeDecoder.releaseStream();
+        }
+    }
+
+    private boolean decodeFlushing(long end, java.io.OutputStream outStream) throws IOException
+    {
+        int step = (m_FlushBytes > 0) ? m_FlushBytes : kFlushCheckInterval;
+        if (m_FlushNanos >= 0)
+        {
+            step = Math.min(step, kFlushCheckInterval);
+        }
+        long pending = 0;
+        long lastFlush = System.nanoTime();
+        while (!m_Finished)
+        {
+            long start = m_NowPos64;
+            if (!decode(Math.min(end, start + step)))
             {
-                lzma.sdk.rangecoder.Decoder.initBitModels(m_Decoders);
+                return false;
             }
-
-            public byte decodeNormal(lzma.sdk.rangecoder.Decoder rangeDecoder) throws IOException
+            pending += m_NowPos64 - start;
+            boolean due = m_FlushBytes > 0 && pending >= m_FlushBytes;
+            if (!due && m_FlushNanos >= 0)
             {
-                int symbol = 1;
-                do
-                {
-                    symbol = (symbol << 1) | rangeDecoder.decodeBit(m_Decoders, symbol);
-                }
-                while (symbol < 0x100);
-                return (byte) symbol;
+                due = System.nanoTime() - lastFlush >= m_FlushNanos;
             }
-
-            public byte decodeWithMatchByte(lzma.sdk.rangecoder.Decoder rangeDecoder, byte matchByte) throws IOException
+            if (due && pending > 0)
             {
-                int symbol = 1;
-                do
+                m_OutWindow.flush();
+                if (outStream != null)
                 {
-                    int matchBit = (matchByte >> 7) & 1;
-                    matchByte <<= 1;
-                    int bit = rangeDecoder.decodeBit(m_Decoders, ((1 + matchBit) << 8) + symbol);
-                    symbol = (symbol << 1) | bit;
-                    if (matchBit != bit)
-                    {
-                        while (symbol < 0x100)
-                        {
-                            symbol = (symbol << 1) | rangeDecoder.decodeBit(m_Decoders, symbol);
-                        }
-                        break;
-                    }
+                    outStream.flush();
                 }
-                while (symbol < 0x100);
-                return (byte) symbol;
+                pending = 0;
+                lastFlush = System.nanoTime();
             }
         }
+        return true;
+    }
 
-        Decoder2[] m_Coders;
-        int m_NumPrevBits;
-        int m_NumPosBits;
-        int m_PosMask;
-
-        public void create(int numPosBits, int numPrevBits)
+    /**
+     * Decodes from a buffer to a buffer, heap or direct, advancing the position of both. When the uncompressed
+     * size is known and fits in a heap buffer, its backing array serves as the window: no byte is copied.
+     *
+     * @param in      the compressed data, positioned right after the .lzma header
+     * @param out     receives the uncompressed data; a {@link java.nio.BufferOverflowException} is thrown if it fills up
+     * @param outSize the uncompressed size, or -1 if the stream is terminated by an end marker
+     * @return false if the compressed data is corrupted
+     */
+    public boolean code(ByteBuffer in, ByteBuffer out, long outSize) throws IOException
+    {
+        m_RangeDecoder.setBuffer(in);
+        m_OutWindow.setStream(null);
+        boolean fits = canDecodeInPlace() && outSize >= 0 && out.hasArray() && outSize <= out.remaining();
+        boolean direct = false;
+        if (!fits)
         {
-            if (m_Coders != null && m_NumPrevBits == numPrevBits && m_NumPosBits == numPosBits)
+            m_OutWindow.setTarget(out);
+        }
+        try
+        {
+            if (fits)
             {
-                return;
+                // the whole output fits: decode straight into the backing array, the window is not even allocated
+                checkMemoryLimit(0);
+                initModels();
+                m_RangeDecoder.init();
+                initState(outSize);
+                // nothing precedes the stream: matches may not reach back before its start
+                m_History = 0;
+                m_OutWindow.setDirectTarget(out.array(), out.arrayOffset() + out.position(), (int) outSize);
+                direct = true;
             }
-            m_NumPosBits = numPosBits;
-            m_PosMask = (1 << numPosBits) - 1;
-            m_NumPrevBits = numPrevBits;
-            int numStates = 1 << (m_NumPrevBits + m_NumPosBits);
-            m_Coders = new Decoder2[numStates];
-            for (int i = 0; i < numStates; i++)
+            else
             {
-                m_Coders[i] = new Decoder2();
+                init(outSize);
+                initState(outSize);
             }
+            return decode(outSize < 0 ? Long.MAX_VALUE : outSize);
         }
-
-        public void init()
+        finally
         {
-            int numStates = 1 << (m_NumPrevBits + m_NumPosBits);
-            for (int i = 0; i < numStates; i++)
+            if (direct)
             {
-                m_Coders[i].init();
+                out.position(m_OutWindow.releaseTarget() - out.arrayOffset());
             }
-        }
-
-        Decoder2 getDecoder(int pos, byte prevByte)
-        {
-            return m_Coders[((pos & m_PosMask) << m_NumPrevBits) + ((prevByte & 0xFF) >>> (8 - m_NumPrevBits))];
+            else if (!fits)
+            {
+                m_OutWindow.releaseTarget();
+            }
+            m_RangeDecoder.releaseStream();
         }
     }
 
-    private final OutWindow m_OutWindow = new OutWindow();
-    private final lzma.sdk.rangecoder.Decoder m_RangeDecoder = new lzma.sdk.rangecoder.Decoder();
-
-    private final short[] m_IsMatchDecoders = new short[Base.kNumStates << Base.kNumPosStatesBitsMax];
-    private final short[] m_IsRepDecoders = new short[Base.kNumStates];
-    private final short[] m_IsRepG0Decoders = new short[Base.kNumStates];
-    private final short[] m_IsRepG1Decoders = new short[Base.kNumStates];
-    private final short[] m_IsRepG2Decoders = new short[Base.kNumStates];
-    private final short[] m_IsRep0LongDecoders = new short[Base.kNumStates << Base.kNumPosStatesBitsMax];
-
-    private final BitTreeDecoder[] m_PosSlotDecoder = new BitTreeDecoder[Base.kNumLenToPosStates];
-    private final short[] m_PosDecoders = new short[Base.kNumFullDistances - Base.kEndPosModelIndex];
-
-    private final BitTreeDecoder m_PosAlignDecoder = new BitTreeDecoder(Base.kNumAlignBits);
-
-    private final LenDecoder m_LenDecoder = new LenDecoder();
-    private final LenDecoder m_RepLenDecoder = new LenDecoder();
-
-    private final LiteralDecoder m_LiteralDecoder = new LiteralDecoder();
-
-    private int m_DictionarySize = -1;
-    private int m_DictionarySizeCheck = -1;
-
-    private int m_PosStateMask;
+    /**
+     * Prepares the decoder to be driven by {@link #decode(byte[], int, int)} on the caller thread.
+     * The decoder properties must have been set before.
+     *
+     * The compressed data is read in blocks, so bytes following the stream may be read ahead: they can be
+     * recovered with {@link #readBufferedInput(byte[], int, int)}.
+     *
+     * @param inStream the compressed data, positioned right after the .lzma header
+     * @param outSize  the uncompressed size, or -1 if the stream is terminated by an end marker
+     * @throws IOException if the range decoder cannot be initialized
+     */
+    public void beginDecoding(java.io.InputStream inStream, long outSize) throws IOException
+    {
+        m_RangeDecoder.setStream(inStream, true);
+        m_OutWindow.setStream(null);
+        init(outSize);
+        initState(outSize);
+    }
 
-    public Decoder()
+    /**
+     * Decodes at most <code>len</code> bytes into <code>buf</code>. Decoding stops exactly at
+     * <code>len</code> bytes, even in the middle of a match, and resumes from there on the next call.
+     * When the first call has room for the whole known-size output, the bytes are decoded in place in
+     * <code>buf</code> without going through the window buffer.
+     *
+     * @return the number of bytes decoded, or -1 if the end of the stream has been reached
+     * @throws IOException if the compressed data is corrupted
+     */
+    public int decode(byte[] buf, int off, int len) throws IOException
     {
-        for (int i = 0; i < Base.kNumLenToPosStates; i++)
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (m_Finished)
+        {
+            return -1;
+        }
+        long limit = m_NowPos64 + len;
+        if (m_OutSize >= 0 && limit > m_OutSize)
+        {
+            limit = m_OutSize;
+        }
+        if (m_NowPos64 == 0 && limit == m_OutSize && canDecodeInPlace())
+        {
+            // the whole output fits in buf: decode straight into it, nothing is left for later calls
+            m_OutWindow.setDirectTarget(buf, off, (int) limit);
+        }
+        else
+        {
+            m_OutWindow.setTarget(buf, off);
+        }
+        boolean ok;
+        int count;
+        try
         {
-            m_PosSlotDecoder[i] = new BitTreeDecoder(Base.kNumPosSlotBits);
+            ok = decode(limit);
         }
+        finally
+        {
+            // also when the input runs out: the window must not keep writing into buf afterwards
+            count = m_OutWindow.releaseTarget() - off;
+        }
+        if (!ok)
+        {
+            throw new IOException("Corrupted input data");
+        }
+        if (count == 0 && m_Finished)
+        {
+            return -1;
+        }
+        return count;
     }
 
-    boolean setDictionarySize(int dictionarySize)
+    /**
+     * Decodes and discards at most <code>n</code> bytes of a stream given to
+     * {@link #beginDecoding(java.io.InputStream, long)}. The bytes only go through the window, which is never
+     * flushed anywhere, so this is the cheapest way to skip data or to check that a stream decodes.
+     *
+     * @return the number of bytes skipped, 0 if the end of the stream has been reached
+     * @throws IOException if the compressed data is corrupted
+     */
+    public long skip(long n) throws IOException
     {
-        if (dictionarySize < 0)
+        if (n <= 0 || m_Finished)
         {
-            return false;
+            return 0;
         }
-        if (m_DictionarySize != dictionarySize)
+        long start = m_NowPos64;
+        long limit = (n > Long.MAX_VALUE - start) ? Long.MAX_VALUE : start + n;
+        if (m_OutSize >= 0 && limit > m_OutSize)
         {
-            m_DictionarySize = dictionarySize;
-            m_DictionarySizeCheck = Math.max(m_DictionarySize, 1);
-            m_OutWindow.create(Math.max(m_DictionarySizeCheck, (1 << 12)));
+            limit = m_OutSize;
         }
-        return true;
+        boolean ok = decode(limit);
+        // no stream nor target is set: this only moves the window position
+        m_OutWindow.flush();
+        if (!ok)
+        {
+            throw new IOException("Corrupted input data");
+        }
+        return m_NowPos64 - start;
     }
 
-    boolean setLcLpPb(int lc, int lp, int pb)
+    /**
+     * Same as {@link #beginDecoding(java.io.InputStream, long)}, the compressed data being read from a buffer,
+     * heap or direct. Its position is set right after the last byte consumed by {@link #endDecoding()}.
+     */
+    public void beginDecoding(ByteBuffer in, long outSize) throws IOException
     {
-        if (lc > Base.kNumLitContextBitsMax || lp > 4 || pb > Base.kNumPosStatesBitsMax)
+        m_RangeDecoder.setBuffer(in);
+        m_OutWindow.setStream(null);
+        init(outSize);
+        initState(outSize);
+    }
+
+    /**
+     * Decodes at most <code>dst.remaining()</code> bytes into <code>dst</code>, heap or direct, advancing
+     * its position. Decoding stops and resumes exactly as with {@link #decode(byte[], int, int)}.
+     *
+     * @return the number of bytes decoded, or -1 if the end of the stream has been reached
+     * @throws IOException if the compressed data is corrupted
+     */
+    public int decode(ByteBuffer dst) throws IOException
+    {
+        int len = dst.remaining();
+        if (len == 0)
         {
-            return false;
+            return 0;
         }
-        m_LiteralDecoder.create(lp, lc);
-        int numPosStates = 1 << pb;
-        m_LenDecoder.create(numPosStates);
-        m_RepLenDecoder.create(numPosStates);
-        m_PosStateMask = numPosStates - 1;
-        return true;
+        if (m_Finished)
+        {
+            return -1;
+        }
+        long limit = m_NowPos64 + len;
+        if (m_OutSize >= 0 && limit > m_OutSize)
+        {
+            limit = m_OutSize;
+        }
+        int start = dst.position();
+        m_OutWindow.setTarget(dst);
+        boolean ok;
+        try
+        {
+            ok = decode(limit);
+        }
+        finally
+        {
+            m_OutWindow.releaseTarget();
+        }
+        if (!ok)
+        {
+            throw new IOException("Corrupted input data");
+        }
+        int count = dst.position() - start;
+        if (count == 0 && m_Finished)
+        {
+            return -1;
+        }
+        return count;
     }
 
-    void init() throws IOException
+    /**
+     * Releases the streams given to {@link #beginDecoding(java.io.InputStream, long)}.
+     */
+    public void endDecoding() throws IOException
     {
-        m_OutWindow.init(false);
+        m_OutWindow.releaseStream();
+        m_RangeDecoder.releaseStream();
+    }
 
-        lzma.sdk.rangecoder.Decoder.initBitModels(m_IsMatchDecoders);
-        lzma.sdk.rangecoder.Decoder.initBitModels(m_IsRep0LongDecoders);
-        lzma.sdk.rangecoder.Decoder.initBitModels(m_IsRepDecoders);
-        lzma.sdk.rangecoder.Decoder.initBitModels(m_IsRepG0Decoders);
-        lzma.sdk.rangecoder.Decoder.initBitModels(m_IsRepG1Decoders);
-        lzma.sdk.rangecoder.Decoder.initBitModels(m_IsRepG2Decoders);
-        lzma.sdk.rangecoder.Decoder.initBitModels(m_PosDecoders);
+    /**
+     * Snapshots the decoding state between two {@link #decode(byte[], int, int)} calls on a stream given to
+     * {@link #beginDecoding(java.io.InputStream, long)}. The snapshot holds a copy of the window history, up to
+     * the dictionary size.
+     */
+    public DecoderCheckpoint checkpoint()
+    {
+        DecoderCheckpoint checkpoint = new DecoderCheckpoint();
+        checkpoint.outputPosition = m_NowPos64;
+        checkpoint.inputPosition = m_RangeDecoder.getStreamPosition();
+        checkpoint.dictionarySize = m_DictionarySize;
+        checkpoint.state = m_State;
+        checkpoint.rep0 = m_Rep0;
+        checkpoint.rep1 = m_Rep1;
+        checkpoint.rep2 = m_Rep2;
+        checkpoint.rep3 = m_Rep3;
+        checkpoint.prevByte = m_PrevByte;
+        checkpoint.remainLen = m_RemainLen;
+        checkpoint.range = m_RangeDecoder.getRange();
+        checkpoint.code = m_RangeDecoder.getCode();
+        checkpoint.probs = m_Probs.clone();
+        int historySize = (int) Math.min(m_NowPos64 + m_History, Math.max(m_DictionarySizeCheck, (1 << 12)));
+        checkpoint.history = new byte[historySize];
+        m_OutWindow.getHistory(checkpoint.history, historySize);
+        return checkpoint;
+    }
 
-        m_LiteralDecoder.init();
-        int i;
-        for (i = 0; i < Base.kNumLenToPosStates; i++)
+    /**
+     * Same as {@link #beginDecoding(java.io.InputStream, long)}, decoding being resumed from
+     * <code>checkpoint</code> instead of the start of the stream. The decoder properties must be those of the
+     * stream the checkpoint was taken from.
+     *
+     * @param inStream the compressed data, positioned {@link DecoderCheckpoint#getInputPosition()} bytes after
+     *                 the .lzma header
+     * @param outSize  the uncompressed size of the whole stream, or -1 if it is terminated by an end marker
+     * @throws IOException if the checkpoint does not match the decoder properties
+     */
+    public void resume(DecoderCheckpoint checkpoint, java.io.InputStream inStream, long outSize) throws IOException
+    {
+        if (checkpoint.dictionarySize != m_DictionarySize || checkpoint.probs.length != m_Probs.length)
         {
-            m_PosSlotDecoder[i].init();
+            throw new IOException("The checkpoint does not match the decoder properties");
         }
-        m_LenDecoder.init();
-        m_RepLenDecoder.init();
-        m_PosAlignDecoder.init();
-        m_RangeDecoder.init();
+        m_RangeDecoder.setStream(inStream, true);
+        m_OutWindow.setStream(null);
+        int windowSize = windowSize(outSize);
+        if (checkpoint.history.length > windowSize)
+        {
+            throw new IOException("The checkpoint does not match the stream size");
+        }
+        checkMemoryLimit(windowSize);
+        m_SolidStarted = false;
+        m_OutWindow.create(windowSize);
+        m_OutWindow.init(false);
+        m_OutWindow.setHistory(checkpoint.history, checkpoint.history.length);
+        System.arraycopy(checkpoint.probs, 0, m_Probs, 0, m_Probs.length);
+        m_RangeDecoder.restore(checkpoint.range, checkpoint.code);
+        initState(outSize);
+        m_State = checkpoint.state;
+        m_Rep0 = checkpoint.rep0;
+        m_Rep1 = checkpoint.rep1;
+        m_Rep2 = checkpoint.rep2;
+        m_Rep3 = checkpoint.rep3;
+        m_PrevByte = checkpoint.prevByte;
+        m_RemainLen = checkpoint.remainLen;
+        m_NowPos64 = checkpoint.outputPosition;
+        m_History = Math.max(checkpoint.history.length - m_NowPos64, 0);
+        m_Finished = (outSize >= 0 && m_NowPos64 >= outSize);
     }
 
-    public boolean code(java.io.InputStream inStream, java.io.OutputStream outStream,
-                        long outSize) throws IOException
+    /**
+     * @return the number of compressed bytes read from the input stream but not consumed yet
+     */
+    public int getBufferedInputSize()
     {
-        m_RangeDecoder.setStream(inStream);
-        m_OutWindow.setStream(outStream);
-        init();
+        return m_RangeDecoder.getBufferedSize();
+    }
 
-        int state = Base.stateInit();
-        int rep0 = 0, rep1 = 0, rep2 = 0, rep3 = 0;
+    /**
+     * Hands out the bytes read from the input stream but not consumed, such as the data following the end of
+     * the compressed stream. They remain available after {@link #endDecoding()}.
+     *
+     * @return the number of bytes copied into <code>b</code>
+     */
+    public int readBufferedInput(byte[] b, int off, int len)
+    {
+        return m_RangeDecoder.readBuffered(b, off, len);
+    }
 
-        long nowPos64 = 0;
-        byte prevByte = 0;
-        while (outSize < 0 || nowPos64 < outSize)
+    /**
+     * @return true once the end marker or the declared uncompressed size has been reached
+     */
+    public boolean isFinished()
+    {
+        return m_Finished;
+    }
+
+    private void initState(long outSize)
+    {
+        m_State = Base.stateInit();
+        m_Rep0 = m_Rep1 = m_Rep2 = m_Rep3 = 0;
+        m_NowPos64 = 0;
+        m_PrevByte = 0;
+        m_RemainLen = 0;
+        m_OutSize = outSize;
+        m_Finished = false;
+    }
+
+    // Decodes until nowPos64 reaches limit, the end marker is met or the data is found to be
+    // corrupted (false is returned then). The state is kept in fields between calls, a match
+    // crossing the limit is resumed through m_RemainLen.
+    private boolean decode(long limit) throws IOException
+    {
+        int state = m_State;
+        int rep0 = m_Rep0, rep1 = m_Rep1, rep2 = m_Rep2, rep3 = m_Rep3;
+        long nowPos64 = m_NowPos64;
+        byte prevByte = m_PrevByte;
+        boolean result = true;
+        final short[] probs = m_Probs;
+        final int lc = m_LiteralContextBits;
+        final long history = m_History;
+        // held in locals: the calls below would otherwise make the JIT reload the fields on every symbol
+        final int posStateMask = m_PosStateMask;
+        final int literalPosMask = m_LiteralPosMask;
+        final int dictionarySizeCheck = m_DictionarySizeCheck;
+        final OutWindow outWindow = m_OutWindow;
+        final lzma.sdk.rangecoder.Decoder rangeDecoder = m_RangeDecoder;
+
+        if (m_RemainLen > 0)
+        {
+            int len = (int) Math.min(m_RemainLen, limit - nowPos64);
+            outWindow.copyBlock(rep0, len);
+            m_RemainLen -= len;
+            nowPos64 += len;
+            prevByte = outWindow.getByte(0);
+        }
+
+        while (nowPos64 < limit)
         {
-            int posState = (int) nowPos64 & m_PosStateMask;
-            if (m_RangeDecoder.decodeBit(m_IsMatchDecoders, (state << Base.kNumPosStatesBitsMax) + posState) == 0)
+            int posState = (int) nowPos64 & posStateMask;
+            if (rangeDecoder.decodeBit(probs, kIsMatch + (state << Base.kNumPosStatesBitsMax) + posState) == 0)
             {
-                LiteralDecoder.Decoder2 decoder2 = m_LiteralDecoder.getDecoder((int) nowPos64, prevByte);
+                int literal = kLiteral + kLiteralCoderSize * (((((int) nowPos64) & literalPosMask) << lc)
+                        + ((prevByte & 0xFF) >>> (8 - lc)));
                 if (!Base.stateIsCharState(state))
                 {
-                    prevByte = decoder2.decodeWithMatchByte(m_RangeDecoder, m_OutWindow.getByte(rep0));
+                    prevByte = decodeWithMatchByte(probs, literal, outWindow.getByte(rep0));
                 }
                 else
                 {
-                    prevByte = decoder2.decodeNormal(m_RangeDecoder);
+                    prevByte = decodeNormal(probs, literal);
                 }
-                m_OutWindow.putByte(prevByte);
+                outWindow.putByte(prevByte);
                 state = Base.stateUpdateChar(state);
                 nowPos64++;
             }
             else
             {
                 int len;
-                if (m_RangeDecoder.decodeBit(m_IsRepDecoders, state) == 1)
+                if (rangeDecoder.decodeBit(probs, kIsRep + state) == 1)
                 {
                     len = 0;
-                    if (m_RangeDecoder.decodeBit(m_IsRepG0Decoders, state) == 0)
+                    if (rangeDecoder.decodeBit(probs, kIsRepG0 + state) == 0)
                     {
-                        if (m_RangeDecoder.decodeBit(m_IsRep0LongDecoders, (state << Base.kNumPosStatesBitsMax) + posState) == 0)
+                        if (rangeDecoder.decodeBit(probs, kIsRep0Long + (state << Base.kNumPosStatesBitsMax) + posState) == 0)
                         {
                             state = Base.stateUpdateShortRep(state);
                             len = 1;
@@ -298,13 +810,13 @@ public class Decoder
                     else
                     {
                         int distance;
-                        if (m_RangeDecoder.decodeBit(m_IsRepG1Decoders, state) == 0)
+                        if (rangeDecoder.decodeBit(probs, kIsRepG1 + state) == 0)
                         {
                             distance = rep1;
                         }
                         else
                         {
-                            if (m_RangeDecoder.decodeBit(m_IsRepG2Decoders, state) == 0)
+                            if (rangeDecoder.decodeBit(probs, kIsRepG2 + state) == 0)
                             {
                                 distance = rep2;
                             }
@@ -320,7 +832,7 @@ public class Decoder
                     }
                     if (len == 0)
                     {
-                        len = m_RepLenDecoder.decode(m_RangeDecoder, posState) + Base.kMatchMinLen;
+                        len = decodeLen(probs, kRepLenCoder, posState) + Base.kMatchMinLen;
                         state = Base.stateUpdateRep(state);
                     }
                 }
@@ -329,30 +841,34 @@ public class Decoder
                     rep3 = rep2;
                     rep2 = rep1;
                     rep1 = rep0;
-                    len = Base.kMatchMinLen + m_LenDecoder.decode(m_RangeDecoder, posState);
+                    len = Base.kMatchMinLen + decodeLen(probs, kLenCoder, posState);
                     state = Base.stateUpdateMatch(state);
-                    int posSlot = m_PosSlotDecoder[Base.getLenToPosState(len)].decode(m_RangeDecoder);
+                    int posSlot = BitTreeDecoder.decode(probs,
+                            kPosSlot + (Base.getLenToPosState(len) << Base.kNumPosSlotBits), rangeDecoder,
+                            Base.kNumPosSlotBits);
                     if (posSlot >= Base.kStartPosModelIndex)
                     {
                         int numDirectBits = (posSlot >> 1) - 1;
                         rep0 = ((2 | (posSlot & 1)) << numDirectBits);
                         if (posSlot < Base.kEndPosModelIndex)
                         {
-                            rep0 += BitTreeDecoder.reverseDecode(m_PosDecoders,
-                                    rep0 - posSlot - 1, m_RangeDecoder, numDirectBits);
+                            rep0 += BitTreeDecoder.reverseDecode(probs,
+                                    kSpecPos + rep0 - posSlot - 1, rangeDecoder, numDirectBits);
                         }
                         else
                         {
-                            rep0 += (m_RangeDecoder.decodeDirectBits(
+                            rep0 += (rangeDecoder.decodeDirectBits(
                                     numDirectBits - Base.kNumAlignBits) << Base.kNumAlignBits);
-                            rep0 += m_PosAlignDecoder.reverseDecode(m_RangeDecoder);
+                            rep0 += BitTreeDecoder.reverseDecode(probs, kAlign, rangeDecoder, Base.kNumAlignBits);
                             if (rep0 < 0)
                             {
                                 if (rep0 == -1)
                                 {
+                                    m_Finished = true;
                                     break;
                                 }
-                                return false;
+                                result = false;
+                                break;
                             }
                         }
                     }
@@ -361,20 +877,116 @@ public class Decoder
                         rep0 = posSlot;
                     }
                 }
-                if (rep0 >= nowPos64 || rep0 >= m_DictionarySizeCheck)
+                if (rep0 >= nowPos64 + history || rep0 >= dictionarySizeCheck)
                 {
-                    // m_OutWindow.flush();
-                    return false;
+                    result = false;
+                    break;
                 }
-                m_OutWindow.copyBlock(rep0, len);
+                if (limit - nowPos64 < len)
+                {
+                    m_RemainLen = len - (int) (limit - nowPos64);
+                    len -= m_RemainLen;
+                }
+                outWindow.copyBlock(rep0, len);
                 nowPos64 += len;
-                prevByte = m_OutWindow.getByte(0);
+                prevByte = outWindow.getByte(0);
             }
         }
-        m_OutWindow.flush();
-        m_OutWindow.releaseStream();
-        m_RangeDecoder.releaseStream();
-        return true;
+
+        if (m_OutSize >= 0 && nowPos64 >= m_OutSize)
+        {
+            m_Finished = true;
+            if (result && !decodeEndMarker(state, (int) nowPos64 & posStateMask))
+            {
+                result = false;
+            }
+        }
+        m_State = state;
+        m_Rep0 = rep0;
+        m_Rep1 = rep1;
+        m_Rep2 = rep2;
+        m_Rep3 = rep3;
+        m_NowPos64 = nowPos64;
+        m_PrevByte = prevByte;
+        return result;
+    }
+
+    // A stream of known size may still be terminated by an end marker, as when the size is patched into the
+    // header once the stream is written: the marker is consumed so that the input is left right after the stream.
+    // Without one, the range decoder is left with a zero code, which a marker (starting with a match bit) cannot.
+    private boolean decodeEndMarker(int state, int posState) throws IOException
+    {
+        if (m_RangeDecoder.getCode() == 0)
+        {
+            return true;
+        }
+        final short[] probs = m_Probs;
+        if (m_RangeDecoder.decodeBit(probs, kIsMatch + (state << Base.kNumPosStatesBitsMax) + posState) == 0
+                || m_RangeDecoder.decodeBit(probs, kIsRep + state) == 1)
+        {
+            return false;
+        }
+        int len = Base.kMatchMinLen + decodeLen(probs, kLenCoder, posState);
+        int posSlot = BitTreeDecoder.decode(probs, kPosSlot + (Base.getLenToPosState(len) << Base.kNumPosSlotBits),
+                m_RangeDecoder, Base.kNumPosSlotBits);
+        if (posSlot != (1 << Base.kNumPosSlotBits) - 1)
+        {
+            return false;
+        }
+        int numDirectBits = (posSlot >> 1) - 1;
+        int distance = (2 | (posSlot & 1)) << numDirectBits;
+        distance += m_RangeDecoder.decodeDirectBits(numDirectBits - Base.kNumAlignBits) << Base.kNumAlignBits;
+        distance += BitTreeDecoder.reverseDecode(probs, kAlign, m_RangeDecoder, Base.kNumAlignBits);
+        return distance == -1;
+    }
+
+    private int decodeLen(short[] probs, int offset, int posState) throws IOException
+    {
+        if (m_RangeDecoder.decodeBit(probs, offset + LenCoder.kChoice) == 0)
+        {
+            return BitTreeDecoder.decode(probs, offset + LenCoder.kLow + (posState << Base.kNumLowLenBits),
+                    m_RangeDecoder, Base.kNumLowLenBits);
+        }
+        if (m_RangeDecoder.decodeBit(probs, offset + LenCoder.kChoice2) == 0)
+        {
+            return Base.kNumLowLenSymbols + BitTreeDecoder.decode(probs,
+                    offset + LenCoder.kMid + (posState << Base.kNumMidLenBits), m_RangeDecoder, Base.kNumMidLenBits);
+        }
+        return Base.kNumLowLenSymbols + Base.kNumMidLenSymbols + BitTreeDecoder.decode(probs,
+                offset + LenCoder.kHigh, m_RangeDecoder, Base.kNumHighLenBits);
+    }
+
+    private byte decodeNormal(short[] probs, int offset) throws IOException
+    {
+        int symbol = 1;
+        do
+        {
+            symbol = (symbol << 1) | m_RangeDecoder.decodeBit(probs, offset + symbol);
+        }
+        while (symbol < 0x100);
+        return (byte) symbol;
+    }
+
+    private byte decodeWithMatchByte(short[] probs, int offset, byte matchByte) throws IOException
+    {
+        int symbol = 1;
+        do
+        {
+            int matchBit = (matchByte >> 7) & 1;
+            matchByte <<= 1;
+            int bit = m_RangeDecoder.decodeBit(probs, offset + ((1 + matchBit) << 8) + symbol);
+            symbol = (symbol << 1) | bit;
+            if (matchBit != bit)
+            {
+                while (symbol < 0x100)
+                {
+                    symbol = (symbol << 1) | m_RangeDecoder.decodeBit(probs, offset + symbol);
+                }
+                break;
+            }
+        }
+        while (symbol < 0x100);
+        return (byte) symbol;
     }
 
     public boolean setDecoderProperties(byte[] properties)
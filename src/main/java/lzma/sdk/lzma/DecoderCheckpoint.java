@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) 2009 Julien Ponge. All rights reserved.
+ *
+ *  <julien.ponge@gmail.com>
+ *  http://julien.ponge.info/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  This work is based on the LZMA SDK by Igor Pavlov.
+ *  The LZMA SDK is placed under the public domain, and can be obtained from
+ *
+ *      http://www.7-zip.org/sdk.html
+ *
+ *  The LzmaInputStream and LzmaOutputStream classes were inspired by the
+ *  work of Christopher League, although they are not derivative works.
+ *
+ *      http://contrapunctus.net/league/haques/lzmajio/
+ */
+
+package lzma.sdk.lzma;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A snapshot of the state of a {@link Decoder} in the middle of a stream: probability models, state and
+ * distance registers, range decoder registers and the window history. Decoding can be resumed from it with
+ * {@link Decoder#resume(DecoderCheckpoint, java.io.InputStream, long)}, given the compressed data from
+ * {@link #getInputPosition()} on.
+ */
+public final class DecoderCheckpoint
+{
+    private static final int kVersion = 1;
+
+    long outputPosition;
+    long inputPosition;
+    int dictionarySize;
+    int state;
+    int rep0, rep1, rep2, rep3;
+    byte prevByte;
+    int remainLen;
+    int range;
+    int code;
+    short[] probs;
+    byte[] history;
+
+    DecoderCheckpoint()
+    {
+    }
+
+    /**
+     * @return the number of uncompressed bytes decoded before the checkpoint
+     */
+    public long getOutputPosition()
+    {
+        return outputPosition;
+    }
+
+    /**
+     * @return the number of compressed bytes consumed before the checkpoint, header excluded
+     */
+    public long getInputPosition()
+    {
+        return inputPosition;
+    }
+
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeInt(kVersion);
+        out.writeLong(outputPosition);
+        out.writeLong(inputPosition);
+        out.writeInt(dictionarySize);
+        out.writeInt(state);
+        out.writeInt(rep0);
+        out.writeInt(rep1);
+        out.writeInt(rep2);
+        out.writeInt(rep3);
+        out.writeByte(prevByte);
+        out.writeInt(remainLen);
+        out.writeInt(range);
+        out.writeInt(code);
+        out.writeInt(probs.length);
+        for (short prob : probs)
+        {
+            out.writeShort(prob);
+        }
+        out.writeInt(history.length);
+        out.write(history);
+    }
+
+    public static DecoderCheckpoint readFrom(DataInput in) throws IOException
+    {
+        if (in.readInt() != kVersion)
+        {
+            throw new IOException("Unsupported checkpoint version");
+        }
+        DecoderCheckpoint checkpoint = new DecoderCheckpoint();
+        checkpoint.outputPosition = in.readLong();
+        checkpoint.inputPosition = in.readLong();
+        checkpoint.dictionarySize = in.readInt();
+        checkpoint.state = in.readInt();
+        checkpoint.rep0 = in.readInt();
+        checkpoint.rep1 = in.readInt();
+        checkpoint.rep2 = in.readInt();
+        checkpoint.rep3 = in.readInt();
+        checkpoint.prevByte = in.readByte();
+        checkpoint.remainLen = in.readInt();
+        checkpoint.range = in.readInt();
+        checkpoint.code = in.readInt();
+        int probsLength = in.readInt();
+        if (probsLength < 0 || probsLength > (1 << 24))
+        {
+            throw new IOException("Corrupted checkpoint");
+        }
+        checkpoint.probs = new short[probsLength];
+        for (int i = 0; i < probsLength; i++)
+        {
+            checkpoint.probs[i] = in.readShort();
+        }
+        int historyLength = in.readInt();
+        // the history may reach back into a preset dictionary or earlier solid streams, before the output start
+        if (historyLength < 0 || historyLength > Math.max(checkpoint.dictionarySize, 1 << 12))
+        {
+            throw new IOException("Corrupted checkpoint");
+        }
+        checkpoint.history = new byte[historyLength];
+        in.readFully(checkpoint.history);
+        return checkpoint;
+    }
+}
@@ -33,6 +33,7 @@ import lzma.sdk.ICodeProgress;
 import lzma.sdk.rangecoder.BitTreeEncoder;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Encoder
 {
@@ -337,6 +338,12 @@ public class Encoder
 
     static final int kNumOpts = 1 << 12;
 
+    /**
+     * Upper bound of the input a single {@link #codeOneBlock(long[], long[], boolean[])} call that does
+     * not reach the end of the data may look at, counted from the first byte not encoded yet.
+     */
+    public static final int kBlockLookAhead = (1 << 12) + (kNumOpts << 1) + (Base.kMatchMaxLen << 1);
+
     class Optimal
     {
         public int State;
@@ -427,12 +434,19 @@ public class Encoder
     long nowPos64;
     boolean _finished;
     java.io.InputStream _inStream;
+    ByteBuffer _inBuffer;
 
     int _matchFinderType = EMatchFinderTypeBT4;
     boolean _writeEndMark = false;
 
     boolean _needReleaseMFStream = false;
 
+    boolean _solid = false;
+    boolean _solidStarted = false;
+    boolean _resumeMatchFinder = false;
+
+    byte[] _presetDictionary;
+
     void create()
     {
         if (_matchFinder == null)
@@ -470,8 +484,7 @@ public class Encoder
 
     void init()
     {
-        baseInit();
-        _rangeEncoder.init();
+        initCoder();
 
         lzma.sdk.rangecoder.Encoder.initBitModels(_isMatch);
         lzma.sdk.rangecoder.Encoder.initBitModels(_isRep0Long);
@@ -493,6 +506,13 @@ public class Encoder
         _repMatchLenEncoder.init(1 << _posStateBits);
 
         _posAlignEncoder.init();
+    }
+
+    // everything but the models and the match finder
+    private void initCoder()
+    {
+        baseInit();
+        _rangeEncoder.init();
 
         _longestMatchWasFound = false;
         _optimumEndIndex = 0;
@@ -1196,12 +1216,27 @@ public class Encoder
         outSize[0] = 0;
         finished[0] = true;
 
-        if (_inStream != null)
+        if (_inStream != null || _inBuffer != null)
         {
-            _matchFinder.setStream(_inStream);
-            _matchFinder.init();
+            if (_inBuffer != null)
+            {
+                _matchFinder.setBuffer(_inBuffer);
+            }
+            else
+            {
+                _matchFinder.setStream(_inStream);
+            }
+            if (_resumeMatchFinder)
+            {
+                _matchFinder.resume();
+            }
+            else
+            {
+                _matchFinder.init(_presetDictionary);
+            }
             _needReleaseMFStream = true;
             _inStream = null;
+            _inBuffer = null;
         }
 
         if (_finished)
@@ -1407,10 +1442,35 @@ public class Encoder
     )
     {
         _inStream = inStream;
-        _finished = false;
-        create();
+        _inBuffer = null;
         setOutStream(outStream);
-        init();
+        prepare();
+    }
+
+    void setBuffers(ByteBuffer inBuffer, ByteBuffer outBuffer)
+    {
+        _inStream = null;
+        _inBuffer = inBuffer;
+        _rangeEncoder.setBuffer(outBuffer);
+        prepare();
+    }
+
+    private void prepare()
+    {
+        _finished = false;
+        _resumeMatchFinder = _solid && _solidStarted;
+        if (_resumeMatchFinder)
+        {
+            // the stream continues the previous one, with the models and the match finder history it left
+            initCoder();
+        }
+        else
+        {
+            create();
+            init();
+        }
+        _matchFinder.setHoldTail(_solid);
+        _solidStarted = _solid;
 
         // if (!_fastMode)
         {
@@ -1426,6 +1486,51 @@ public class Encoder
         nowPos64 = 0;
     }
 
+    /**
+     * Prepares the encoder to be driven step by step through {@link #codeOneBlock(long[], long[], boolean[])}.
+     * <p>
+     * The input stream may be non-blocking: a read returning 0 means that no data is available yet.
+     * The caller must then make sure that at least {@link #kBlockLookAhead} bytes are pending before
+     * each step, or that the input stream has reached its end, as running out of data is taken as the
+     * end of the stream.
+     */
+    public void beginEncoding(java.io.InputStream inStream, java.io.OutputStream outStream)
+    {
+        _needReleaseMFStream = false;
+        setStreams(inStream, outStream);
+    }
+
+    /**
+     * Drops the stream being encoded, if any, and reinitializes the probability models so that the encoder can
+     * be reused for another stream without reallocating its match finder and buffers. Solid mode and the preset
+     * dictionary are turned off; the other settings are kept.
+     */
+    public void reset()
+    {
+        _needReleaseMFStream = _matchFinder != null;
+        releaseStreams();
+        _inStream = null;
+        _inBuffer = null;
+        _finished = false;
+        _solid = false;
+        _solidStarted = false;
+        _presetDictionary = null;
+        nowPos64 = 0;
+        if (_matchFinder != null)
+        {
+            // the models only exist once the encoder has been used
+            init();
+        }
+    }
+
+    /**
+     * Releases the streams given to {@link #beginEncoding(java.io.InputStream, java.io.OutputStream)}.
+     */
+    public void endEncoding()
+    {
+        releaseStreams();
+    }
+
     long[] processedInSize = new long[1];
     long[] processedOutSize = new long[1];
     boolean[] finished = new boolean[1];
@@ -1437,20 +1542,28 @@ public class Encoder
         try
         {
             setStreams(inStream, outStream);
-            while (true)
-            {
-
+            codeAll(progress);
+        }
+        finally
+        {
+            releaseStreams();
+        }
+    }
 
-                codeOneBlock(processedInSize, processedOutSize, finished);
-                if (finished[0])
-                {
-                    return;
-                }
-                if (progress != null)
-                {
-                    progress.setProgress(processedInSize[0], processedOutSize[0]);
-                }
-            }
+    /**
+     * Encodes from a buffer to a buffer, heap or direct, advancing the position of both. The input is
+     * encoded up to its limit.
+     *
+     * @param out receives the compressed data; a {@link java.nio.BufferOverflowException} is thrown if it fills up
+     */
+    public void code(ByteBuffer in, ByteBuffer out,
+                     long inSize, long outSize, ICodeProgress progress) throws IOException
+    {
+        _needReleaseMFStream = false;
+        try
+        {
+            setBuffers(in, out);
+            codeAll(progress);
         }
         finally
         {
@@ -1458,17 +1571,44 @@ public class Encoder
         }
     }
 
+    private void codeAll(ICodeProgress progress) throws IOException
+    {
+        while (true)
+        {
+            codeOneBlock(processedInSize, processedOutSize, finished);
+            if (finished[0])
+            {
+                return;
+            }
+            if (progress != null)
+            {
+                progress.setProgress(processedInSize[0], processedOutSize[0]);
+            }
+        }
+    }
+
     public static final int kPropSize = 5;
     byte[] properties = new byte[kPropSize];
 
     public void writeCoderProperties(java.io.OutputStream outStream) throws IOException
+    {
+        fillProperties();
+        outStream.write(properties, 0, kPropSize);
+    }
+
+    public void writeCoderProperties(ByteBuffer out)
+    {
+        fillProperties();
+        out.put(properties, 0, kPropSize);
+    }
+
+    private void fillProperties()
     {
         properties[0] = (byte) ((_posStateBits * 5 + _numLiteralPosStateBits) * 9 + _numLiteralContextBits);
         for (int i = 0; i < 4; i++)
         {
             properties[1 + i] = (byte) (_dictionarySize >> (8 * i));
         }
-        outStream.write(properties, 0, kPropSize);
     }
 
     int[] tempPrices = new int[Base.kNumFullDistances];
@@ -1540,6 +1680,10 @@ public class Encoder
         {
             return false;
         }
+        if (_dictionarySize != dictionarySize)
+        {
+            _solidStarted = false;
+        }
         _dictionarySize = dictionarySize;
         int dicLogSize;
         for (dicLogSize = 0; dictionarySize > (1 << dicLogSize); dicLogSize++)
@@ -1555,6 +1699,10 @@ public class Encoder
         {
             return false;
         }
+        if (_numFastBytes != numFastBytes)
+        {
+            _solidStarted = false;
+        }
         _numFastBytes = numFastBytes;
         return true;
     }
@@ -1571,6 +1719,7 @@ public class Encoder
         {
             _dictionarySizePrev = -1;
             _matchFinder = null;
+            _solidStarted = false;
         }
         return true;
     }
@@ -1584,6 +1733,10 @@ public class Encoder
         {
             return false;
         }
+        if (lp != _numLiteralPosStateBits || lc != _numLiteralContextBits || pb != _posStateBits)
+        {
+            _solidStarted = false;
+        }
         _numLiteralPosStateBits = lp;
         _numLiteralContextBits = lc;
         _posStateBits = pb;
@@ -1595,5 +1748,38 @@ public class Encoder
     {
         _writeEndMark = endMarkerMode;
     }
+
+    /**
+     * In solid mode, each stream encoded after the first one continues the previous one: its matches may reach
+     * back into the earlier streams, up to the dictionary size, and the probability models start from where the
+     * previous stream left them, so a run of small streams compresses about as well as their concatenation.
+     * Only the range coder and the encoder state are started afresh, and every stream stays a complete .lzma
+     * stream, which only a {@link Decoder} in solid mode that decoded the previous ones can decode.
+     * <p>
+     * The run ends with {@link #reset()} or a change of the dictionary size, match finder, number of fast bytes
+     * or literal and position bits.
+     */
+    public void setSolid(boolean solid)
+    {
+        _solid = solid;
+        if (!solid)
+        {
+            _solidStarted = false;
+        }
+    }
+
+    /**
+     * Makes each stream start as if <code>dictionary</code> had been encoded just before it: the match finder is
+     * primed with it, so that small inputs sharing content with it, like messages following a common schema,
+     * find matches from their first bytes on. Only the last dictionary size bytes are used. The streams must be
+     * decoded by a {@link Decoder} given the same preset dictionary, which the .lzma header does not record.
+     * In solid mode, only the first stream of a run starts with it.
+     *
+     * @param dictionary the preset dictionary, which is not copied, or <code>null</code> for none
+     */
+    public void setPresetDictionary(byte[] dictionary)
+    {
+        _presetDictionary = (dictionary != null && dictionary.length > 0) ? dictionary : null;
+    }
 }
 
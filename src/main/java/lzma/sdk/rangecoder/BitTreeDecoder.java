@@ -40,6 +40,17 @@ public class BitTreeDecoder
         return symbol;
     }
 
+    public static int decode(short[] Models, int startIndex,
+                             Decoder rangeDecoder, int NumBitLevels) throws java.io.IOException
+    {
+        int m = 1;
+        for (int bitIndex = NumBitLevels; bitIndex != 0; bitIndex--)
+        {
+            m = (m << 1) + rangeDecoder.decodeBit(Models, startIndex + m);
+        }
+        return m - (1 << NumBitLevels);
+    }
+
     public static int reverseDecode(short[] Models, int startIndex,
                                     Decoder rangeDecoder, int NumBitLevels) throws java.io.IOException
     {
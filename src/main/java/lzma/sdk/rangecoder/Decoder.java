@@ -1,6 +1,9 @@
 package lzma.sdk.rangecoder;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class Decoder
 {
@@ -10,31 +13,211 @@ public class Decoder
     private static final int kBitModelTotal = (1 << kNumBitModelTotalBits);
     private static final int kNumMoveBits = 5;
 
+    private static final int kBlockSize = 1 << 16;
+
     private int Range;
     private int Code;
 
     private java.io.InputStream Stream;
+    private boolean ReadAhead;
+    private ByteBuffer Buffer;
+
+    // Compressed bytes are taken from Buf[BufPos..BufLimit). Buf is either the backing array of a heap
+    // buffer, used in place, or Block, refilled from the stream or a direct buffer in large reads.
+    private byte[] Block;
+    private byte[] Buf;
+    private int BufPos;
+    private int BufLimit;
+    // bytes loaded into Block since the stream was set
+    private long Loaded;
 
+    /**
+     * Makes the decoder read its input from <code>stream</code>, one byte at a time: no byte past the end of
+     * the compressed data is consumed.
+     */
     public final void setStream(java.io.InputStream stream)
     {
+        setStream(stream, false);
+    }
+
+    /**
+     * Makes the decoder read its input from <code>stream</code>, in blocks if <code>readAhead</code> is set.
+     * The decoder may then read past the end of the compressed data; see {@link #readBuffered(byte[], int, int)}.
+     */
+    public final void setStream(java.io.InputStream stream, boolean readAhead)
+    {
+        releaseStream();
         Stream = stream;
+        ReadAhead = readAhead;
+        useBlock();
+        Loaded = 0;
     }
 
+    /**
+     * Makes the decoder read its input from <code>buffer</code>, heap or direct. Its position is set right
+     * after the last byte consumed once the buffer is released.
+     */
+    public final void setBuffer(ByteBuffer buffer)
+    {
+        releaseStream();
+        Buffer = buffer;
+        if (buffer.hasArray())
+        {
+            Buf = buffer.array();
+            BufPos = buffer.arrayOffset() + buffer.position();
+            BufLimit = buffer.arrayOffset() + buffer.limit();
+        }
+        else
+        {
+            useBlock();
+        }
+    }
+
+    /**
+     * Forgets about the input. Bytes read ahead from a stream remain available through
+     * {@link #readBuffered(byte[], int, int)} until another input is set.
+     */
     public final void releaseStream()
     {
+        if (Buffer != null)
+        {
+            if (Buffer.hasArray())
+            {
+                Buffer.position(BufPos - Buffer.arrayOffset());
+            }
+            else
+            {
+                Buffer.position(Buffer.position() - (BufLimit - BufPos));
+            }
+            Buffer = null;
+            Buf = null;
+            BufPos = 0;
+            BufLimit = 0;
+        }
         Stream = null;
     }
 
+    /**
+     * @return the number of bytes read from the input but not consumed yet
+     */
+    public final int getBufferedSize()
+    {
+        return BufLimit - BufPos;
+    }
+
+    /**
+     * Hands out bytes read from the input but not consumed, such as the data following the compressed stream.
+     */
+    public final int readBuffered(byte[] b, int off, int len)
+    {
+        int n = Math.min(len, BufLimit - BufPos);
+        if (n > 0)
+        {
+            System.arraycopy(Buf, BufPos, b, off, n);
+            BufPos += n;
+        }
+        return n;
+    }
+
+    /**
+     * Drops the bytes read from the input but not consumed.
+     */
+    public final void discardBuffered()
+    {
+        BufPos = BufLimit;
+    }
+
+    private void useBlock()
+    {
+        if (Block == null)
+        {
+            Block = new byte[kBlockSize];
+        }
+        Buf = Block;
+        BufPos = 0;
+        BufLimit = 0;
+    }
+
+    private int readByte() throws IOException
+    {
+        if (BufPos < BufLimit)
+        {
+            return Buf[BufPos++] & 0xFF;
+        }
+        return refill();
+    }
+
+    // kept out of readByte so that the common path stays small enough to be inlined
+    private int refill() throws IOException
+    {
+        int n = -1;
+        if (Stream != null)
+        {
+            n = ReadAhead ? Stream.read(Buf, 0, Buf.length) : 0;
+            if (n == 0)
+            {
+                // a single byte, or a non-blocking source with nothing buffered
+                int b = Stream.read();
+                if (b >= 0)
+                {
+                    Buf[0] = (byte) b;
+                    n = 1;
+                }
+            }
+        }
+        else if (Buffer != null && !Buffer.hasArray() && Buffer.hasRemaining())
+        {
+            n = Math.min(Buffer.remaining(), Buf.length);
+            Buffer.get(Buf, 0, n);
+        }
+        if (n <= 0)
+        {
+            throw new EOFException("Unexpected end of LZMA data");
+        }
+        BufPos = 1;
+        BufLimit = n;
+        Loaded += n;
+        return Buf[0] & 0xFF;
+    }
+
     public final void init() throws IOException
     {
         Code = 0;
         Range = -1;
         for (int i = 0; i < 5; i++)
         {
-            Code = (Code << 8) | Stream.read();
+            Code = (Code << 8) | readByte();
         }
     }
 
+    /**
+     * @return the number of bytes consumed from the stream given to {@link #setStream(java.io.InputStream)}
+     */
+    public final long getStreamPosition()
+    {
+        return Loaded - (BufLimit - BufPos);
+    }
+
+    public final int getRange()
+    {
+        return Range;
+    }
+
+    public final int getCode()
+    {
+        return Code;
+    }
+
+    /**
+     * Resumes decoding from a state saved with {@link #getRange()} and {@link #getCode()}, instead of
+     * {@link #init()}. The input must be positioned where the state was saved.
+     */
+    public final void restore(int range, int code)
+    {
+        Range = range;
+        Code = code;
+    }
+
     public final int decodeDirectBits(int numTotalBits) throws IOException
     {
         int result = 0;
@@ -47,7 +230,7 @@ public class Decoder
 
             if ((Range & kTopMask) == 0)
             {
-                Code = (Code << 8) | Stream.read();
+                Code = (Code << 8) | readByte();
                 Range <<= 8;
             }
         }
@@ -64,7 +247,7 @@ public class Decoder
             probs[index] = (short) (prob + ((kBitModelTotal - prob) >>> kNumMoveBits));
             if ((Range & kTopMask) == 0)
             {
-                Code = (Code << 8) | Stream.read();
+                Code = (Code << 8) | readByte();
                 Range <<= 8;
             }
             return 0;
@@ -76,7 +259,7 @@ public class Decoder
             probs[index] = (short) (prob - ((prob) >>> kNumMoveBits));
             if ((Range & kTopMask) == 0)
             {
-                Code = (Code << 8) | Stream.read();
+                Code = (Code << 8) | readByte();
                 Range <<= 8;
             }
             return 1;
@@ -85,9 +268,6 @@ public class Decoder
 
     public static void initBitModels(short[] probs)
     {
-        for (int i = 0; i < probs.length; i++)
-        {
-            probs[i] = (kBitModelTotal >>> 1);
-        }
+        Arrays.fill(probs, (short) (kBitModelTotal >>> 1));
     }
 }
@@ -1,6 +1,7 @@
 package lzma.sdk.rangecoder;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Encoder
 {
@@ -11,6 +12,7 @@ public class Encoder
     private static final int kNumMoveBits = 5;
 
     private java.io.OutputStream Stream;
+    private ByteBuffer Buffer;
 
     private long Low;
     private int Range;
@@ -22,11 +24,23 @@ public class Encoder
     public void setStream(java.io.OutputStream stream)
     {
         Stream = stream;
+        Buffer = null;
+    }
+
+    /**
+     * Makes the encoder write its output to <code>buffer</code>, heap or direct, advancing its position.
+     * A {@link java.nio.BufferOverflowException} is thrown if it fills up.
+     */
+    public void setBuffer(ByteBuffer buffer)
+    {
+        Buffer = buffer;
+        Stream = null;
     }
 
     public void releaseStream()
     {
         Stream = null;
+        Buffer = null;
     }
 
     public void init()
@@ -48,7 +62,10 @@ public class Encoder
 
     public void flushStream() throws IOException
     {
-        Stream.flush();
+        if (Stream != null)
+        {
+            Stream.flush();
+        }
     }
 
     void shiftLow() throws IOException
@@ -58,12 +75,24 @@ public class Encoder
         {
             _position += _cacheSize;
             int temp = _cache;
-            do
+            if (Buffer != null)
+            {
+                do
+                {
+                    Buffer.put((byte) (temp + LowHi));
+                    temp = 0xFF;
+                }
+                while (--_cacheSize != 0);
+            }
+            else
             {
-                Stream.write(temp + LowHi);
-                temp = 0xFF;
+                do
+                {
+                    Stream.write(temp + LowHi);
+                    temp = 0xFF;
+                }
+                while (--_cacheSize != 0);
             }
-            while (--_cacheSize != 0);
             _cache = (((int) Low) >>> 24);
         }
         _cacheSize++;
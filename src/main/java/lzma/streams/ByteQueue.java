@@ -0,0 +1,151 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A growable FIFO of bytes, written as an output stream and drained into arrays or through
+ * a non-blocking input stream view.
+ */
+class ByteQueue
+        extends OutputStream
+{
+    private byte[] buffer;
+
+    private int head;
+
+    private int tail;
+
+    private boolean ended;
+
+    private final InputStream input = new InputStream()
+    {
+        @Override
+        public int read()
+        {
+            return (head == tail) ? -1 : (buffer[head++] & 0xFF);
+        }
+
+        @Override
+        public int read(byte b[], int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (head == tail)
+            {
+                return ended ? -1 : 0;
+            }
+            return drain(b, off, len);
+        }
+
+        @Override
+        public int available()
+        {
+            return size();
+        }
+    };
+
+    ByteQueue(int initialCapacity)
+    {
+        buffer = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(int b)
+    {
+        ensureCapacity(1);
+        buffer[tail++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte b[], int off, int len)
+    {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, tail, len);
+        tail += len;
+    }
+
+    /**
+     * Marks the end of the data: once drained, the input stream view then reports an end of stream
+     * instead of 0 bytes.
+     */
+    void end()
+    {
+        ended = true;
+    }
+
+    boolean isEnded()
+    {
+        return ended;
+    }
+
+    int size()
+    {
+        return tail - head;
+    }
+
+    int drain(byte[] b, int off, int len)
+    {
+        int count = Math.min(len, tail - head);
+        System.arraycopy(buffer, head, b, off, count);
+        head += count;
+        if (head == tail)
+        {
+            head = tail = 0;
+        }
+        return count;
+    }
+
+    /**
+     * @return a view that reads the queued bytes, returning 0 when empty unless {@link #end()} was called
+     */
+    InputStream asInputStream()
+    {
+        return input;
+    }
+
+    void clear()
+    {
+        head = tail = 0;
+        ended = false;
+    }
+
+    private void ensureCapacity(int len)
+    {
+        if (buffer.length - tail >= len)
+        {
+            return;
+        }
+        int size = tail - head;
+        if (buffer.length - size < len)
+        {
+            byte[] grown = new byte[Math.max(buffer.length << 1, size + len)];
+            System.arraycopy(buffer, head, grown, 0, size);
+            buffer = grown;
+        }
+        else
+        {
+            System.arraycopy(buffer, head, buffer, 0, size);
+        }
+        head = 0;
+        tail = size;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Reads a blocking channel through a large direct buffer, so that the range decoder byte reads are served
+ * from memory and the channel is only hit once per chunk.
+ */
+class ChannelInputStream
+        extends InputStream
+{
+    private final ReadableByteChannel channel;
+
+    private final ByteBuffer buffer;
+
+    private boolean eof;
+
+    ChannelInputStream(final ReadableByteChannel channel, final int bufferSize)
+    {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking())
+        {
+            throw new IllegalBlockingModeException();
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.buffer.flip();
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        if (buffer.hasRemaining() || fill())
+        {
+            return buffer.get() & 0xFF;
+        }
+        return -1;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len)
+            throws IOException
+    {
+        if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!buffer.hasRemaining() && !fill())
+        {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+
+    private boolean fill()
+            throws IOException
+    {
+        if (eof)
+        {
+            return false;
+        }
+        buffer.clear();
+        int n;
+        do
+        {
+            n = channel.read(buffer);
+        }
+        while (n == 0);
+        buffer.flip();
+        if (n < 0)
+        {
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+}
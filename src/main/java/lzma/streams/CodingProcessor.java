@@ -0,0 +1,305 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The plumbing shared by the LZMA {@link Flow.Processor}s: a serialized drain loop moving upstream chunks into
+ * a step-wise coder and coded chunks downstream, as far as the downstream demand allows.
+ * <p>
+ * Input is requested one chunk at a time, and only while the coder needs it and the subscriber wants more,
+ * so that a slow subscriber slows the publisher down instead of piling data up.
+ */
+abstract class CodingProcessor
+        implements Flow.Processor<ByteBuffer, ByteBuffer>
+{
+    private final byte[] buffer;
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final AtomicLong demand = new AtomicLong();
+
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private volatile Flow.Subscription upstream;
+
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+
+    private boolean subscribed;
+
+    // set by onError or onComplete only
+    private volatile boolean upstreamDone;
+
+    private volatile Throwable error;
+
+    private volatile boolean cancelled;
+
+    // only touched by the drain loop
+    private boolean inFlight;
+
+    private boolean ended;
+
+    private boolean terminated;
+
+    CodingProcessor(final int chunkSize)
+    {
+        if (chunkSize <= 0)
+        {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.buffer = new byte[chunkSize];
+    }
+
+    abstract void consume(byte[] b, int off, int len);
+
+    abstract void end();
+
+    abstract int produce(byte[] b, int off, int len)
+            throws IOException;
+
+    abstract boolean needsInput();
+
+    abstract boolean done();
+
+    // == subscriber side
+
+    public void onSubscribe(final Flow.Subscription subscription)
+    {
+        if (upstream != null)
+        {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        drain();
+    }
+
+    public void onNext(final ByteBuffer item)
+    {
+        queue.offer(item);
+        drain();
+    }
+
+    public void onError(final Throwable throwable)
+    {
+        error = throwable;
+        upstreamDone = true;
+        drain();
+    }
+
+    public void onComplete()
+    {
+        upstreamDone = true;
+        drain();
+    }
+
+    // == publisher side
+
+    public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber)
+    {
+        synchronized (this)
+        {
+            if (subscribed)
+            {
+                subscriber.onSubscribe(new Flow.Subscription()
+                {
+                    public void request(long n)
+                    {
+                    }
+
+                    public void cancel()
+                    {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+                return;
+            }
+            subscribed = true;
+        }
+        subscriber.onSubscribe(new Flow.Subscription()
+        {
+            public void request(long n)
+            {
+                if (n <= 0)
+                {
+                    fail(new IllegalArgumentException("Non-positive request: " + n));
+                    return;
+                }
+                long current;
+                long next;
+                do
+                {
+                    current = demand.get();
+                    next = current + n;
+                    if (next < 0)
+                    {
+                        next = Long.MAX_VALUE;
+                    }
+                }
+                while (!demand.compareAndSet(current, next));
+                drain();
+            }
+
+            public void cancel()
+            {
+                cancelled = true;
+                drain();
+            }
+        });
+        // nothing is signalled until onSubscribe has returned
+        downstream = subscriber;
+        drain();
+    }
+
+    // ==
+
+    private void fail(final Throwable throwable)
+    {
+        if (error == null)
+        {
+            error = throwable;
+        }
+        drain();
+    }
+
+    private void drain()
+    {
+        if (wip.getAndIncrement() != 0)
+        {
+            return;
+        }
+        int missed = 1;
+        do
+        {
+            drainOnce();
+            missed = wip.addAndGet(-missed);
+        }
+        while (missed != 0);
+    }
+
+    private void drainOnce()
+    {
+        if (terminated)
+        {
+            queue.clear();
+            return;
+        }
+        final Flow.Subscriber<? super ByteBuffer> subscriber = downstream;
+        final Flow.Subscription subscription = upstream;
+        if (cancelled)
+        {
+            terminate(subscription);
+            return;
+        }
+        if (subscriber == null || subscription == null)
+        {
+            return;
+        }
+        try
+        {
+            if (error != null)
+            {
+                terminate(subscription);
+                subscriber.onError(error);
+                return;
+            }
+
+            ByteBuffer item;
+            while ((item = queue.poll()) != null)
+            {
+                inFlight = false;
+                if (item.hasArray())
+                {
+                    consume(item.array(), item.arrayOffset() + item.position(), item.remaining());
+                }
+                else
+                {
+                    final ByteBuffer view = item.duplicate();
+                    while (view.hasRemaining())
+                    {
+                        int n = Math.min(view.remaining(), buffer.length);
+                        view.get(buffer, 0, n);
+                        consume(buffer, 0, n);
+                    }
+                }
+            }
+            if (upstreamDone && !ended)
+            {
+                ended = true;
+                end();
+            }
+
+            while (demand.get() > 0 && !cancelled)
+            {
+                int count = 0;
+                int n;
+                while (count < buffer.length && (n = produce(buffer, count, buffer.length - count)) > 0)
+                {
+                    count += n;
+                }
+                if (count == 0)
+                {
+                    break;
+                }
+                demand.decrementAndGet();
+                subscriber.onNext(ByteBuffer.wrap(Arrays.copyOf(buffer, count)));
+            }
+
+            if (done())
+            {
+                terminate(subscription);
+                subscriber.onComplete();
+            }
+            else if (ended)
+            {
+                if (demand.get() > 0)
+                {
+                    terminate(subscription);
+                    subscriber.onError(new EOFException("Truncated LZMA stream"));
+                }
+            }
+            else if (!inFlight && demand.get() > 0 && needsInput())
+            {
+                inFlight = true;
+                subscription.request(1);
+            }
+        }
+        catch (Throwable e)
+        {
+            terminate(subscription);
+            subscriber.onError(e);
+        }
+    }
+
+    private void terminate(final Flow.Subscription subscription)
+    {
+        terminated = true;
+        queue.clear();
+        if (!upstreamDone && subscription != null)
+        {
+            subscription.cancel();
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lz.MappedOutWindow;
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One-shot compression and decompression of in-memory data, on the calling thread.
+ * {@link #decompress(Path, Path)} also decompresses files through a memory-mapped output.
+ * <p>
+ * The data produced is a regular .lzma stream whose header holds the uncompressed size, so that
+ * {@link #decompress(byte[])} allocates the output array once with its exact size. The dictionary
+ * is sized after the input, which keeps both sides cheap for small payloads.
+ *
+ * @author Julien Ponge
+ */
+public final class Lzma
+{
+    /**
+     * The size of the .lzma header: the coder properties followed by the uncompressed size.
+     */
+    public static final int HEADER_SIZE = Encoder.kPropSize + 8;
+
+    private static final int MIN_DICTIONARY_SIZE = 1 << 12;
+
+    private static final int MAX_DICTIONARY_SIZE = 1 << 23;
+
+    private Lzma()
+    {
+    }
+
+    /**
+     * @return the largest size that compressing <code>len</code> bytes can produce, header included
+     */
+    public static int compressBound(int len)
+    {
+        if (len < 0)
+        {
+            throw new IllegalArgumentException("Negative length: " + len);
+        }
+        long bound = (long) len + len / 3 + 128 + HEADER_SIZE;
+        if (bound > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Input too large: " + len);
+        }
+        return (int) bound;
+    }
+
+    public static byte[] compress(byte[] data)
+            throws IOException
+    {
+        return compress(data, 0, data.length);
+    }
+
+    public static byte[] compress(byte[] data, int off, int len)
+            throws IOException
+    {
+        if ((off | len | (data.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        byte[] out = new byte[compressBound(len)];
+        int n = compress(ByteBuffer.wrap(data, off, len), ByteBuffer.wrap(out));
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Compresses <code>data</code> against a preset dictionary (see {@link Encoder#setPresetDictionary(byte[])}),
+     * which pays off for small inputs sharing content with it. The result can only be decompressed with
+     * {@link #decompress(byte[], byte[])} and the same dictionary.
+     */
+    public static byte[] compress(byte[] data, byte[] dictionary)
+            throws IOException
+    {
+        Encoder encoder = new Encoder();
+        encoder.setDictionarySize(dictionarySizeFor((long) data.length + dictionary.length));
+        encoder.setPresetDictionary(dictionary);
+        byte[] out = new byte[compressBound(data.length)];
+        int n = compress(ByteBuffer.wrap(data), ByteBuffer.wrap(out), encoder);
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Compresses the remaining bytes of <code>src</code> into <code>dst</code>, advancing the position of both.
+     * A {@link java.nio.BufferOverflowException} is thrown if <code>dst</code> has less room than
+     * {@link #compressBound(int)} and the data does not fit.
+     *
+     * @return the number of bytes written to <code>dst</code>
+     */
+    public static int compress(ByteBuffer src, ByteBuffer dst)
+            throws IOException
+    {
+        Encoder encoder = new Encoder();
+        encoder.setDictionarySize(dictionarySizeFor(src.remaining()));
+        return compress(src, dst, encoder);
+    }
+
+    static int compress(ByteBuffer src, ByteBuffer dst, Encoder encoder)
+            throws IOException
+    {
+        int start = dst.position();
+        long len = src.remaining();
+
+        encoder.setEndMarkerMode(false);
+        encoder.writeCoderProperties(dst);
+        for (int i = 0; i < 8; i++)
+        {
+            dst.put((byte) (len >>> (8 * i)));
+        }
+        encoder.code(src, dst, -1, -1, null);
+        return dst.position() - start;
+    }
+
+    public static byte[] decompress(byte[] data)
+            throws IOException
+    {
+        return decompress(data, 0, data.length);
+    }
+
+    /**
+     * Decompresses a whole .lzma stream. When the header holds the uncompressed size the output is allocated
+     * once; otherwise, as with streams terminated by an end marker, it grows as needed.
+     *
+     * @throws IOException if the data is corrupted or truncated
+     */
+    public static byte[] decompress(byte[] data, int off, int len)
+            throws IOException
+    {
+        if ((off | len | (data.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        return decompress(data, off, len, new Decoder());
+    }
+
+    /**
+     * Decompresses data compressed by {@link #compress(byte[], byte[])} with the same preset dictionary.
+     *
+     * @throws IOException if the data is corrupted or truncated
+     */
+    public static byte[] decompress(byte[] data, byte[] dictionary)
+            throws IOException
+    {
+        Decoder decoder = new Decoder();
+        decoder.setPresetDictionary(dictionary);
+        return decompress(data, 0, data.length, decoder);
+    }
+
+    private static byte[] decompress(byte[] data, int off, int len, Decoder decoder)
+            throws IOException
+    {
+        ByteBuffer src = ByteBuffer.wrap(data, off, len);
+        long outSize = readHeader(src, decoder);
+        if (outSize < 0)
+        {
+            return decompressUnknownSize(src, decoder, len);
+        }
+        if (outSize > Integer.MAX_VALUE - 8)
+        {
+            throw new IOException("Uncompressed data too large for an array: " + outSize);
+        }
+        byte[] out = new byte[(int) outSize];
+        decode(src, ByteBuffer.wrap(out), decoder, outSize);
+        return out;
+    }
+
+    /**
+     * Decompresses a whole .lzma stream from <code>src</code> into <code>dst</code>, advancing the position of both.
+     * A {@link java.nio.BufferOverflowException} is thrown if <code>dst</code> is too small.
+     *
+     * @return the number of bytes written to <code>dst</code>
+     * @throws IOException if the data is corrupted or truncated
+     */
+    public static int decompress(ByteBuffer src, ByteBuffer dst)
+            throws IOException
+    {
+        int start = dst.position();
+        Decoder decoder = new Decoder();
+        decode(src, dst, decoder, readHeader(src, decoder));
+        return dst.position() - start;
+    }
+
+    /**
+     * Decompresses a .lzma file into <code>target</code>, which is memory-mapped and serves as the decoder window
+     * itself: the heap usage stays small and there is no write pass, even with a 256 MB dictionary.
+     *
+     * @return the number of bytes decompressed
+     * @throws IOException if the data is corrupted or truncated; <code>target</code> is then deleted
+     */
+    public static long decompress(Path source, Path target)
+            throws IOException
+    {
+        InputStream in = Files.newInputStream(source);
+        try
+        {
+            Decoder decoder = new Decoder();
+            long outSize = LzmaDecoderWrapper.readHeader(in, decoder);
+            FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try
+            {
+                MappedOutWindow window = new MappedOutWindow(out, 0);
+                boolean ok;
+                try
+                {
+                    ok = decoder.code(in, window, outSize);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // unmapped before the file is deleted, without hiding the decoding failure
+                    finish(window, e);
+                    throw e;
+                }
+                long size = window.finish();
+                if (!ok)
+                {
+                    throw new IOException("Corrupted input data");
+                }
+                if (outSize >= 0 && size != outSize)
+                {
+                    throw new EOFException("Truncated LZMA stream");
+                }
+                out.close();
+                return size;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // no partial output is left behind
+                try
+                {
+                    out.close();
+                    Files.deleteIfExists(target);
+                }
+                catch (IOException suppressed)
+                {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void finish(MappedOutWindow window, Exception failure)
+    {
+        try
+        {
+            window.finish();
+        }
+        catch (IOException e)
+        {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Checks that the .lzma stream read from <code>in</code> decodes fully, without materializing the
+     * uncompressed data: it only goes through the decoder window. The stream is left open.
+     *
+     * @return the uncompressed size
+     * @throws IOException if the data is corrupted or truncated
+     */
+    public static long verify(InputStream in)
+            throws IOException
+    {
+        Decoder decoder = new Decoder();
+        long outSize = LzmaDecoderWrapper.readHeader(in, decoder);
+        long size = 0;
+        decoder.beginDecoding(in, outSize);
+        try
+        {
+            long n;
+            while ((n = decoder.skip(Long.MAX_VALUE)) > 0)
+            {
+                size += n;
+            }
+        }
+        finally
+        {
+            decoder.endDecoding();
+        }
+        if (!decoder.isFinished() || (outSize >= 0 && size != outSize))
+        {
+            throw new EOFException("Truncated LZMA stream");
+        }
+        return size;
+    }
+
+    static void decode(ByteBuffer src, ByteBuffer dst, Decoder decoder, long outSize)
+            throws IOException
+    {
+        int start = dst.position();
+        if (!decoder.code(src, dst, outSize))
+        {
+            throw new IOException("Corrupted input data");
+        }
+        if (outSize >= 0 && dst.position() - start != outSize)
+        {
+            throw new EOFException("Truncated LZMA stream");
+        }
+    }
+
+    private static byte[] decompressUnknownSize(ByteBuffer src, Decoder decoder, int len)
+            throws IOException
+    {
+        byte[] out = new byte[Math.max(len << 2, 64)];
+        int count = 0;
+        decoder.beginDecoding(src, -1);
+        try
+        {
+            while (true)
+            {
+                if (count == out.length)
+                {
+                    if (count > Integer.MAX_VALUE - 8 - count)
+                    {
+                        throw new IOException("Uncompressed data too large for an array");
+                    }
+                    out = Arrays.copyOf(out, count << 1);
+                }
+                int n = decoder.decode(out, count, out.length - count);
+                if (n < 0)
+                {
+                    break;
+                }
+                count += n;
+            }
+        }
+        finally
+        {
+            decoder.endDecoding();
+        }
+        return (count == out.length) ? out : Arrays.copyOf(out, count);
+    }
+
+    static long readHeader(ByteBuffer src, Decoder decoder)
+            throws IOException
+    {
+        if (src.remaining() < HEADER_SIZE)
+        {
+            throw new IOException("LZMA file has no header!");
+        }
+        byte[] properties = new byte[Encoder.kPropSize];
+        src.get(properties);
+        if (!decoder.setDecoderProperties(properties))
+        {
+            throw new IOException("Decoder properties cannot be set!");
+        }
+        long outSize = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            outSize |= ((long) (src.get() & 0xFF)) << (8 * i);
+        }
+        return outSize;
+    }
+
+    static int dictionarySizeFor(long len)
+    {
+        int size = MIN_DICTIONARY_SIZE;
+        while (size < len && size < MAX_DICTIONARY_SIZE)
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+}
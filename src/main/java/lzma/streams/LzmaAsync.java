@@ -0,0 +1,535 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Asynchronous compression and decompression of files.
+ * <p>
+ * Files are read and written through {@link AsynchronousFileChannel}s while coding runs on the given executor,
+ * one step at a time: the next input chunk is read while the current one is coded, and output chunks are written
+ * in the background, at most two at a time. No thread is ever blocked on I/O, so a small pool can keep many
+ * files and disks busy.
+ *
+ * @author Julien Ponge
+ */
+public final class LzmaAsync
+{
+    private LzmaAsync()
+    {
+    }
+
+    /**
+     * Compresses <code>src</code> into <code>dst</code> as an .lzma file, which is created or truncated.
+     * The uncompressed size is written in the header once known.
+     */
+    public static CompletableFuture<Stats> compress(final Path src, final Path dst, final Options options)
+    {
+        final Encoder encoder = new Encoder();
+        encoder.setDictionarySize(options.dictionarySize);
+        encoder.setNumFastBytes(options.numFastBytes);
+        final LzmaCompressor compressor = new LzmaCompressor(encoder);
+        return new Job(options)
+        {
+            void consume(byte[] b, int len)
+            {
+                compressor.setInput(b, 0, len);
+            }
+
+            void end()
+            {
+                compressor.finish();
+            }
+
+            int produce(byte[] b, int off, int len)
+                    throws IOException
+            {
+                return compressor.encode(b, off, len);
+            }
+
+            boolean done()
+            {
+                return compressor.finished();
+            }
+
+            CompletableFuture<Void> complete()
+            {
+                // the compressor wrote "unknown" as the size; the stream keeps its end marker,
+                // which readers drain once the patched size is reached
+                final ByteBuffer size = ByteBuffer.allocate(8);
+                for (int i = 0; i < 8; i++)
+                {
+                    size.put((byte) (compressor.getBytesRead() >>> (8 * i)));
+                }
+                size.flip();
+                return write(size, Encoder.kPropSize);
+            }
+        }.start(src, dst);
+    }
+
+    /**
+     * Decompresses the .lzma file <code>src</code> into <code>dst</code>, which is created or truncated.
+     */
+    public static CompletableFuture<Stats> decompress(final Path src, final Path dst, final Options options)
+    {
+        final LzmaDecompressor decompressor = new LzmaDecompressor(new Decoder());
+        return new Job(options)
+        {
+            void consume(byte[] b, int len)
+            {
+                decompressor.setInput(b, 0, len);
+            }
+
+            void end()
+            {
+                decompressor.finish();
+            }
+
+            int produce(byte[] b, int off, int len)
+                    throws IOException
+            {
+                return decompressor.decode(b, off, len);
+            }
+
+            boolean done()
+            {
+                return decompressor.finished();
+            }
+
+            CompletableFuture<Void> complete()
+            {
+                return CompletableFuture.completedFuture(null);
+            }
+        }.start(src, dst);
+    }
+
+    /**
+     * The settings of an asynchronous job. Default values:
+     * <ul>
+     * <li>executor: the common fork/join pool</li>
+     * <li>buffer size: 1 MB</li>
+     * <li>dictionary size: 1 << 23</li>
+     * <li>number of fast bytes: 0x20</li>
+     * </ul>
+     */
+    public static class Options
+    {
+        private Executor executor = ForkJoinPool.commonPool();
+
+        private int bufferSize = 1 << 20;
+
+        private int dictionarySize = 1 << 23;
+
+        private int numFastBytes = 0x20;
+
+        public Options useExecutor(Executor executor)
+        {
+            if (executor == null)
+            {
+                throw new NullPointerException("executor");
+            }
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param bufferSize the size of the chunks read from and written to the files
+         */
+        public Options useBufferSize(int bufferSize)
+        {
+            if (bufferSize <= 0)
+            {
+                throw new IllegalArgumentException("Buffer size must be positive");
+            }
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        public Options useMaximalDictionarySize()
+        {
+            dictionarySize = 1 << 28;
+            return this;
+        }
+
+        public Options useMediumDictionarySize()
+        {
+            dictionarySize = 1 << 15;
+            return this;
+        }
+
+        public Options useMinimalDictionarySize()
+        {
+            dictionarySize = 1;
+            return this;
+        }
+
+        public Options useMinimalFastBytes()
+        {
+            numFastBytes = 5;
+            return this;
+        }
+
+        public Options useMediumFastBytes()
+        {
+            numFastBytes = 0x20;
+            return this;
+        }
+
+        public Options useMaximalFastBytes()
+        {
+            numFastBytes = 273;
+            return this;
+        }
+    }
+
+    /**
+     * What a completed job did.
+     */
+    public static final class Stats
+    {
+        private final long bytesRead;
+
+        private final long bytesWritten;
+
+        private final long nanos;
+
+        Stats(long bytesRead, long bytesWritten, long nanos)
+        {
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.nanos = nanos;
+        }
+
+        public long getBytesRead()
+        {
+            return bytesRead;
+        }
+
+        public long getBytesWritten()
+        {
+            return bytesWritten;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Stats{read=" + bytesRead + ", written=" + bytesWritten + ", nanos=" + nanos + "}";
+        }
+    }
+
+    // ==
+
+    /**
+     * Drives a compressor or decompressor between two files. The coder is only touched from one executor task
+     * at a time: each task schedules the next one when it is done.
+     */
+    private abstract static class Job
+    {
+        private final Executor executor;
+
+        private final int bufferSize;
+
+        private final CompletableFuture<Stats> result = new CompletableFuture<Stats>();
+
+        private final ConcurrentLinkedQueue<ByteBuffer> spare = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        private final long start = System.nanoTime();
+
+        private AsynchronousFileChannel in;
+
+        private AsynchronousFileChannel out;
+
+        private ByteBuffer input;
+
+        private ByteBuffer current;
+
+        private CompletableFuture<Integer> pendingRead;
+
+        private boolean inputEnded;
+
+        private long readPosition;
+
+        private long writePosition;
+
+        // completes when all the writes issued so far are done
+        private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+        // completes when all the writes but the last one are done
+        private CompletableFuture<Void> previousWrite = lastWrite;
+
+        Job(final Options options)
+        {
+            this.executor = options.executor;
+            this.bufferSize = options.bufferSize;
+        }
+
+        abstract void consume(byte[] b, int len);
+
+        abstract void end();
+
+        abstract int produce(byte[] b, int off, int len)
+                throws IOException;
+
+        abstract boolean done();
+
+        abstract CompletableFuture<Void> complete();
+
+        CompletableFuture<Stats> start(final Path src, final Path dst)
+        {
+            try
+            {
+                in = AsynchronousFileChannel.open(src, StandardOpenOption.READ);
+                out = AsynchronousFileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                input = ByteBuffer.allocate(bufferSize);
+                read();
+                awaitInput();
+            }
+            catch (Throwable e)
+            {
+                fail(e);
+            }
+            return result;
+        }
+
+        private void read()
+        {
+            final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+            input.clear();
+            in.read(input, readPosition, null, new CompletionHandler<Integer, Void>()
+            {
+                public void completed(Integer n, Void attachment)
+                {
+                    future.complete(n);
+                }
+
+                public void failed(Throwable e, Void attachment)
+                {
+                    future.completeExceptionally(e);
+                }
+            });
+            pendingRead = future;
+        }
+
+        private void awaitInput()
+        {
+            pendingRead.whenCompleteAsync((n, e) -> {
+                if (e != null)
+                {
+                    fail(e);
+                }
+                else
+                {
+                    accept(n);
+                }
+            }, executor);
+        }
+
+        private void accept(int n)
+        {
+            if (result.isDone())
+            {
+                return;
+            }
+            try
+            {
+                if (n < 0)
+                {
+                    inputEnded = true;
+                    end();
+                }
+                else
+                {
+                    consume(input.array(), n);
+                    readPosition += n;
+                    // the data has been copied, read ahead while it gets coded
+                    read();
+                }
+                pump();
+            }
+            catch (Throwable e)
+            {
+                fail(e);
+            }
+        }
+
+        // codes one output chunk at most, then schedules itself again
+        private void pump()
+        {
+            if (result.isDone())
+            {
+                return;
+            }
+            try
+            {
+                final ByteBuffer chunk = fill();
+                if (chunk != null)
+                {
+                    write(chunk, writePosition).thenRun(() -> spare.offer(chunk));
+                    previousWrite.whenCompleteAsync((v, e) -> {
+                        if (e != null)
+                        {
+                            fail(e);
+                        }
+                        else
+                        {
+                            pump();
+                        }
+                    }, executor);
+                }
+                else if (done())
+                {
+                    lastWrite.thenCompose(v -> complete()).whenComplete((v, e) -> {
+                        if (e != null)
+                        {
+                            fail(e);
+                        }
+                        else
+                        {
+                            close();
+                            result.complete(new Stats(readPosition, writePosition, System.nanoTime() - start));
+                        }
+                    });
+                }
+                else if (inputEnded)
+                {
+                    fail(new EOFException("Truncated LZMA stream"));
+                }
+                else
+                {
+                    awaitInput();
+                }
+            }
+            catch (Throwable e)
+            {
+                fail(e);
+            }
+        }
+
+        // returns a chunk to write once it is full or the end has been reached, null if more input is needed
+        private ByteBuffer fill()
+                throws IOException
+        {
+            if (current == null)
+            {
+                current = spare.poll();
+                if (current == null)
+                {
+                    current = ByteBuffer.allocate(bufferSize);
+                }
+                current.clear();
+            }
+            while (current.hasRemaining())
+            {
+                int n = produce(current.array(), current.position(), current.remaining());
+                if (n <= 0)
+                {
+                    break;
+                }
+                current.position(current.position() + n);
+            }
+            if (current.hasRemaining() && !(done() && current.position() > 0))
+            {
+                return null;
+            }
+            final ByteBuffer chunk = current;
+            current = null;
+            chunk.flip();
+            return chunk;
+        }
+
+        CompletableFuture<Void> write(final ByteBuffer chunk, final long position)
+        {
+            final CompletableFuture<Void> future = new CompletableFuture<Void>();
+            if (position == writePosition)
+            {
+                writePosition += chunk.remaining();
+            }
+            out.write(chunk, position, null, new CompletionHandler<Integer, Void>()
+            {
+                private long next = position;
+
+                public void completed(Integer n, Void attachment)
+                {
+                    next += n;
+                    if (chunk.hasRemaining())
+                    {
+                        out.write(chunk, next, null, this);
+                    }
+                    else
+                    {
+                        future.complete(null);
+                    }
+                }
+
+                public void failed(Throwable e, Void attachment)
+                {
+                    future.completeExceptionally(e);
+                }
+            });
+            previousWrite = lastWrite;
+            lastWrite = CompletableFuture.allOf(lastWrite, future);
+            return future;
+        }
+
+        private void fail(Throwable e)
+        {
+            close();
+            result.completeExceptionally(e);
+        }
+
+        private void close()
+        {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+
+        private static void closeQuietly(AsynchronousFileChannel channel)
+        {
+            if (channel != null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e)
+                {
+                    // mute
+                }
+            }
+        }
+    }
+}
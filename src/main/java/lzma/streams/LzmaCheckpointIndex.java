@@ -0,0 +1,287 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.DecoderCheckpoint;
+import lzma.sdk.lzma.Encoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Random access into a plain .lzma file through a sidecar index of decoder checkpoints, for files that
+ * cannot be re-encoded into a {@link SeekableLzmaChannel} container.
+ * <p>
+ * {@link #build(InputStream, OutputStream, long)} decodes the file once and snapshots the decoder every
+ * <code>interval</code> bytes of output. {@link #openAt(SeekableByteChannel, long)} then resumes decoding from
+ * the nearest checkpoint before the requested offset. Each checkpoint holds the window history, so the
+ * index size is about the dictionary size per checkpoint, before compression.
+ * <p>
+ * The sidecar is laid out as follows, integers being little-endian:
+ * <pre>
+ * header          the .lzma header of the indexed file
+ * record 0 ... n-1  checkpoints, each compressed as a .lzma stream
+ * index           n entries of (output position: 8 bytes, record offset: 8 bytes)
+ * trailer         uncompressed size: 8 bytes, index offset: 8 bytes, n: 4 bytes, magic "LZMC": 4 bytes
+ * </pre>
+ *
+ * @author Julien Ponge
+ */
+public class LzmaCheckpointIndex
+{
+    private static final int MAGIC = 0x434D5A4C;
+
+    private static final int TRAILER_SIZE = 24;
+
+    private final byte[] properties = new byte[Encoder.kPropSize];
+
+    private final long declaredSize;
+
+    private final long uncompressedSize;
+
+    private final long[] outputPositions;
+
+    private final long[] recordOffsets;
+
+    private final SeekableByteChannel sidecar;
+
+    /**
+     * Reads the index of a sidecar built by {@link #build(InputStream, OutputStream, long)}. Checkpoints are
+     * read from <code>sidecar</code> on demand, so it must stay open while the index is used.
+     */
+    public LzmaCheckpointIndex(final SeekableByteChannel sidecar)
+            throws IOException
+    {
+        this.sidecar = sidecar;
+        long length = sidecar.size();
+        if (length < Lzma.HEADER_SIZE + TRAILER_SIZE)
+        {
+            throw new IOException("Not an LZMA checkpoint index: too short");
+        }
+        ByteBuffer header = readFully(0, Lzma.HEADER_SIZE);
+        header.get(properties);
+        declaredSize = header.getLong();
+
+        ByteBuffer trailer = readFully(length - TRAILER_SIZE, TRAILER_SIZE);
+        uncompressedSize = trailer.getLong();
+        long indexOffset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getInt() != MAGIC)
+        {
+            throw new IOException("Not an LZMA checkpoint index: bad magic");
+        }
+        if (count < 0 || indexOffset < Lzma.HEADER_SIZE || indexOffset + 16L * count != length - TRAILER_SIZE)
+        {
+            throw new IOException("Corrupted LZMA checkpoint index");
+        }
+        ByteBuffer index = readFully(indexOffset, 16 * count);
+        outputPositions = new long[count];
+        recordOffsets = new long[count + 1];
+        for (int i = 0; i < count; i++)
+        {
+            outputPositions[i] = index.getLong();
+            recordOffsets[i] = index.getLong();
+        }
+        recordOffsets[count] = indexOffset;
+    }
+
+    /**
+     * Decodes the .lzma file read from <code>in</code> and writes its checkpoint index to <code>sidecar</code>.
+     * Both streams are left open.
+     *
+     * @param interval the number of uncompressed bytes between two checkpoints
+     * @return the number of checkpoints
+     */
+    public static int build(InputStream in, OutputStream sidecar, long interval)
+            throws IOException
+    {
+        if (interval <= 0)
+        {
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        }
+        byte[] header = new byte[Lzma.HEADER_SIZE];
+        new DataInputStream(in).readFully(header);
+        Decoder decoder = new Decoder();
+        long outSize = Lzma.readHeader(ByteBuffer.wrap(header), decoder);
+        decoder.beginDecoding(in, outSize);
+
+        sidecar.write(header);
+        long offset = header.length;
+        ByteBuffer index = ByteBuffer.allocate(16 * 64).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] buffer = new byte[1 << 16];
+        long pos = 0;
+        long next = interval;
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        // reused for all the records: a new encoder allocates its match finder, tens of MB, each time
+        Encoder encoder = null;
+        int encoderDictionarySize = 0;
+        ByteBuffer compressed = null;
+        try
+        {
+            while (true)
+            {
+                int n = decoder.decode(buffer, 0, (int) Math.min(buffer.length, next - pos));
+                if (n < 0)
+                {
+                    break;
+                }
+                pos += n;
+                if (pos == next && !decoder.isFinished())
+                {
+                    record.reset();
+                    decoder.checkpoint().writeTo(new DataOutputStream(record));
+                    // the history, and so the records, only grow until they reach the dictionary size
+                    int dictionarySize = Lzma.dictionarySizeFor(record.size());
+                    if (encoder == null || encoderDictionarySize < dictionarySize)
+                    {
+                        encoder = new Encoder();
+                        encoder.setDictionarySize(dictionarySize);
+                        encoderDictionarySize = dictionarySize;
+                    }
+                    int bound = Lzma.compressBound(record.size());
+                    if (compressed == null || compressed.capacity() < bound)
+                    {
+                        compressed = ByteBuffer.allocate(bound);
+                    }
+                    compressed.clear();
+                    Lzma.compress(ByteBuffer.wrap(record.toByteArray()), compressed, encoder);
+                    encoder.reset();
+                    if (index.remaining() < 16)
+                    {
+                        ByteBuffer larger = ByteBuffer.allocate(index.capacity() << 1).order(ByteOrder.LITTLE_ENDIAN);
+                        index.flip();
+                        index = larger.put(index);
+                    }
+                    index.putLong(pos).putLong(offset);
+                    sidecar.write(compressed.array(), 0, compressed.position());
+                    offset += compressed.position();
+                    next += interval;
+                }
+            }
+        }
+        finally
+        {
+            decoder.endDecoding();
+        }
+        int count = index.position() / 16;
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putLong(pos).putLong(offset).putInt(count).putInt(MAGIC);
+        sidecar.write(index.array(), 0, index.position());
+        sidecar.write(trailer.array());
+        return count;
+    }
+
+    /**
+     * Opens a stream over the uncompressed contents of the indexed file, starting at <code>offset</code>.
+     * Decoding resumes from the nearest checkpoint, so at most the checkpoint interval gets decoded and skipped.
+     * Closing the stream closes <code>lzma</code>.
+     *
+     * @param lzma the indexed .lzma file, which starts at position 0
+     */
+    public InputStream openAt(SeekableByteChannel lzma, long offset)
+            throws IOException
+    {
+        if (offset < 0)
+        {
+            throw new IllegalArgumentException("Negative offset: " + offset);
+        }
+        Decoder decoder = new Decoder();
+        if (!decoder.setDecoderProperties(properties))
+        {
+            throw new IOException("Decoder properties cannot be set!");
+        }
+        int i = Arrays.binarySearch(outputPositions, offset);
+        if (i < 0)
+        {
+            i = -i - 2;
+        }
+        InputStream in;
+        long pos;
+        if (i < 0)
+        {
+            in = Channels.newInputStream(lzma.position(Lzma.HEADER_SIZE));
+            decoder.beginDecoding(in, declaredSize);
+            pos = 0;
+        }
+        else
+        {
+            DecoderCheckpoint checkpoint = readCheckpoint(i);
+            in = Channels.newInputStream(lzma.position(Lzma.HEADER_SIZE + checkpoint.getInputPosition()));
+            decoder.resume(checkpoint, in, declaredSize);
+            pos = checkpoint.getOutputPosition();
+        }
+        decoder.skip(offset - pos);
+        return LzmaInputStream.started(in, decoder);
+    }
+
+    /**
+     * @return the uncompressed size of the indexed file
+     */
+    public long getUncompressedSize()
+    {
+        return uncompressedSize;
+    }
+
+    public int getCheckpointCount()
+    {
+        return outputPositions.length;
+    }
+
+    private DecoderCheckpoint readCheckpoint(int i)
+            throws IOException
+    {
+        long size = recordOffsets[i + 1] - recordOffsets[i];
+        if (size < Lzma.HEADER_SIZE || size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Corrupted LZMA checkpoint index");
+        }
+        ByteBuffer record = readFully(recordOffsets[i], (int) size);
+        byte[] data = Lzma.decompress(record.array(), 0, record.limit());
+        return DecoderCheckpoint.readFrom(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private ByteBuffer readFully(long offset, int len)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (sidecar)
+        {
+            sidecar.position(offset);
+            while (buffer.hasRemaining())
+            {
+                if (sidecar.read(buffer) < 0)
+                {
+                    throw new EOFException("Truncated LZMA checkpoint index");
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A thread-safe pool of encoders and decoders.
+ * <p>
+ * A new {@link Encoder} allocates its match finder (for the default 8 MB dictionary, a 64 MB binary tree
+ * and a 12 MB window) and a new {@link Decoder} a dictionary-sized window. Coders taken from the pool keep
+ * those allocations: they are reset when given back and only handed out again for the same settings, that
+ * is the dictionary size, match finder, number of fast bytes and lc/lp/pb for encoders, and the dictionary
+ * size and lc/lp/pb for decoders.
+ * <p>
+ * Coders are idle between a <code>return</code> and the next <code>borrow</code>; a coder must not be used
+ * after it has been given back.
+ *
+ * @author Julien Ponge
+ */
+public class LzmaCoderPool
+{
+    public static final int DEFAULT_MAX_IDLE = 4;
+
+    private final int maxIdlePerKey;
+
+    private final Map<Key, ArrayDeque<Encoder>> idleEncoders = new HashMap<Key, ArrayDeque<Encoder>>();
+
+    private final Map<Key, ArrayDeque<Decoder>> idleDecoders = new HashMap<Key, ArrayDeque<Decoder>>();
+
+    // coders do not override equals, and the ones never given back must not be retained
+    private final Map<Object, Key> borrowed = new WeakHashMap<Object, Key>();
+
+    public LzmaCoderPool()
+    {
+        this(DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param maxIdlePerKey how many idle coders of each kind are kept for each setting; extra ones are dropped
+     */
+    public LzmaCoderPool(final int maxIdlePerKey)
+    {
+        if (maxIdlePerKey < 0)
+        {
+            throw new IllegalArgumentException("Negative idle count: " + maxIdlePerKey);
+        }
+        this.maxIdlePerKey = maxIdlePerKey;
+    }
+
+    /**
+     * @return an encoder configured with the given settings; its end marker mode is left to the caller
+     * @throws IllegalArgumentException if a setting is out of range
+     */
+    public Encoder borrowEncoder(int dictionarySize, int matchFinder, int numFastBytes, int lc, int lp, int pb)
+    {
+        final Key key = new Key(dictionarySize, matchFinder, numFastBytes, lc, lp, pb);
+        Encoder encoder;
+        synchronized (this)
+        {
+            encoder = poll(idleEncoders, key);
+        }
+        if (encoder == null)
+        {
+            encoder = new Encoder();
+            if (!encoder.setDictionarySize(dictionarySize) || !encoder.setMatchFinder(matchFinder)
+                    || !encoder.setNumFastBytes(numFastBytes) || !encoder.setLcLpPb(lc, lp, pb))
+            {
+                throw new IllegalArgumentException("Invalid encoder settings: " + key);
+            }
+        }
+        synchronized (this)
+        {
+            borrowed.put(encoder, key);
+        }
+        return encoder;
+    }
+
+    /**
+     * Resets the encoder and keeps it for a later {@link #borrowEncoder(int, int, int, int, int, int)}.
+     *
+     * @throws IllegalArgumentException if the encoder was not borrowed from this pool
+     */
+    public void returnEncoder(final Encoder encoder)
+    {
+        final Key key = release(encoder);
+        encoder.reset();
+        synchronized (this)
+        {
+            offer(idleEncoders, key, encoder);
+        }
+    }
+
+    /**
+     * @param properties the 5 property bytes of an .lzma header
+     * @return a decoder with these properties set
+     * @throws IllegalArgumentException if the properties are invalid
+     */
+    public Decoder borrowDecoder(final byte[] properties)
+    {
+        if (properties.length < 5)
+        {
+            throw new IllegalArgumentException("Decoder properties are 5 bytes long");
+        }
+        int val = properties[0] & 0xFF;
+        int dictionarySize = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            dictionarySize += ((int) (properties[1 + i]) & 0xFF) << (i * 8);
+        }
+        final Key key = new Key(dictionarySize, -1, -1, val % 9, (val / 9) % 5, val / 45);
+        Decoder decoder;
+        synchronized (this)
+        {
+            decoder = poll(idleDecoders, key);
+        }
+        if (decoder == null)
+        {
+            decoder = new Decoder();
+        }
+        // set on every borrow: the properties may have been changed since the decoder was given back
+        if (!decoder.setDecoderProperties(properties))
+        {
+            throw new IllegalArgumentException("Invalid decoder properties: " + key);
+        }
+        synchronized (this)
+        {
+            borrowed.put(decoder, key);
+        }
+        return decoder;
+    }
+
+    /**
+     * Resets the decoder and keeps it for a later {@link #borrowDecoder(byte[])}.
+     *
+     * @throws IllegalArgumentException if the decoder was not borrowed from this pool
+     */
+    public void returnDecoder(final Decoder decoder)
+    {
+        final Key key = release(decoder);
+        decoder.reset();
+        synchronized (this)
+        {
+            offer(idleDecoders, key, decoder);
+        }
+    }
+
+    /**
+     * Drops all the idle coders.
+     */
+    public synchronized void clear()
+    {
+        idleEncoders.clear();
+        idleDecoders.clear();
+    }
+
+    // ==
+
+    private synchronized Key release(final Object coder)
+    {
+        final Key key = borrowed.remove(coder);
+        if (key == null)
+        {
+            throw new IllegalArgumentException("Not borrowed from this pool");
+        }
+        return key;
+    }
+
+    private static <T> T poll(final Map<Key, ArrayDeque<T>> idle, final Key key)
+    {
+        final ArrayDeque<T> coders = idle.get(key);
+        return (coders == null) ? null : coders.pollFirst();
+    }
+
+    private <T> void offer(final Map<Key, ArrayDeque<T>> idle, final Key key, final T coder)
+    {
+        ArrayDeque<T> coders = idle.get(key);
+        if (coders == null)
+        {
+            coders = new ArrayDeque<T>();
+            idle.put(key, coders);
+        }
+        if (coders.size() < maxIdlePerKey)
+        {
+            coders.addFirst(coder);
+        }
+    }
+
+    private static final class Key
+    {
+        private final int dictionarySize;
+
+        private final int matchFinder;
+
+        private final int numFastBytes;
+
+        private final int lc;
+
+        private final int lp;
+
+        private final int pb;
+
+        Key(int dictionarySize, int matchFinder, int numFastBytes, int lc, int lp, int pb)
+        {
+            this.dictionarySize = dictionarySize;
+            this.matchFinder = matchFinder;
+            this.numFastBytes = numFastBytes;
+            this.lc = lc;
+            this.lp = lp;
+            this.pb = pb;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) o;
+            return dictionarySize == other.dictionarySize && matchFinder == other.matchFinder
+                    && numFastBytes == other.numFastBytes && lc == other.lc && lp == other.lp && pb == other.pb;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((((dictionarySize * 31 + matchFinder) * 31 + numFastBytes) * 31 + lc) * 31 + lp) * 31 + pb;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "dictionarySize=" + dictionarySize + ", matchFinder=" + matchFinder + ", numFastBytes="
+                    + numFastBytes + ", lc=" + lc + ", lp=" + lp + ", pb=" + pb;
+        }
+    }
+}
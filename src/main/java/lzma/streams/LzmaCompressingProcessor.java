@@ -0,0 +1,79 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Encoder;
+
+import java.io.IOException;
+
+/**
+ * A {@link java.util.concurrent.Flow.Processor} compressing the chunks it receives into an .lzma stream.
+ * <p>
+ * Compressed chunks are emitted as soon as the encoder produces them, one block of about 4 KB of input at a
+ * time, and only as the subscriber requests them: input is requested from the publisher one chunk at a time,
+ * and only when the encoder is short of data and the subscriber wants more. Coding happens on whichever thread
+ * signals the processor. Input buffers are not modified and emitted buffers belong to the subscriber.
+ *
+ * @author Julien Ponge
+ */
+public class LzmaCompressingProcessor
+        extends CodingProcessor
+{
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+    private final LzmaCompressor compressor;
+
+    public LzmaCompressingProcessor(final Encoder encoder)
+    {
+        this(encoder, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the largest size of the emitted chunks
+     */
+    public LzmaCompressingProcessor(final Encoder encoder, final int chunkSize)
+    {
+        super(chunkSize);
+        this.compressor = new LzmaCompressor(encoder);
+    }
+
+    void consume(byte[] b, int off, int len)
+    {
+        compressor.setInput(b, off, len);
+    }
+
+    void end()
+    {
+        compressor.finish();
+    }
+
+    int produce(byte[] b, int off, int len)
+            throws IOException
+    {
+        return compressor.encode(b, off, len);
+    }
+
+    boolean needsInput()
+    {
+        return compressor.needsInput();
+    }
+
+    boolean done()
+    {
+        return compressor.finished();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Encoder;
+
+import java.io.IOException;
+
+/**
+ * A non-blocking LZMA compressor shaped after {@link java.util.zip.Deflater}: input is pushed with
+ * {@link #setInput(byte[], int, int)} and compressed data is pulled with {@link #encode(byte[], int, int)},
+ * in bounded steps and on the calling thread. The output is a complete .lzma stream (header and end marker).
+ * <p>
+ * A typical usage is:
+ * <pre>
+ * compressor.setInput(data, 0, data.length);
+ * compressor.finish();
+ * while (!compressor.finished())
+ * {
+ *     int n = compressor.encode(buffer, 0, buffer.length);
+ *     out.write(buffer, 0, n);
+ * }
+ * </pre>
+ * Instances are not thread-safe.
+ *
+ * @author Julien Ponge
+ */
+public class LzmaCompressor
+{
+    private final Encoder encoder;
+
+    private final ByteQueue input = new ByteQueue(Encoder.kBlockLookAhead << 1);
+
+    private final ByteQueue output = new ByteQueue(1 << 16);
+
+    private final long[] processedInSize = new long[1];
+
+    private final long[] processedOutSize = new long[1];
+
+    private final boolean[] blockFinished = new boolean[1];
+
+    private long totalIn;
+
+    private long consumed;
+
+    private boolean started;
+
+    private boolean encoderFinished;
+
+    /**
+     * @param encoder a configured encoder; it is switched to end marker mode since the stream size is not known
+     */
+    public LzmaCompressor(final Encoder encoder)
+    {
+        this.encoder = encoder;
+        this.encoder.setEndMarkerMode(true);
+    }
+
+    /**
+     * Queues some input data. The bytes are copied, so the array can be reused as soon as this method returns.
+     */
+    public void setInput(byte[] b, int off, int len)
+    {
+        if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        if (input.isEnded())
+        {
+            throw new IllegalStateException("finish() has been called");
+        }
+        input.write(b, off, len);
+        totalIn += len;
+    }
+
+    public void setInput(byte[] b)
+    {
+        setInput(b, 0, b.length);
+    }
+
+    /**
+     * @return true if more input is needed before {@link #encode(byte[], int, int)} can make progress
+     */
+    public boolean needsInput()
+    {
+        return !input.isEnded() && output.size() == 0 && totalIn - consumed < Encoder.kBlockLookAhead;
+    }
+
+    /**
+     * Indicates that no more input will be given: the remaining data and the end of the stream get encoded.
+     */
+    public void finish()
+    {
+        input.end();
+    }
+
+    /**
+     * @return true once the whole stream has been handed out by {@link #encode(byte[], int, int)}
+     */
+    public boolean finished()
+    {
+        return encoderFinished && output.size() == 0;
+    }
+
+    /**
+     * Fills <code>b</code> with compressed data, encoding at most one more block of about 4 KB of input
+     * whenever the previously encoded data has been handed out.
+     *
+     * @return the number of bytes written to <code>b</code>, 0 meaning that more input is needed
+     */
+    public int encode(byte[] b, int off, int len)
+            throws IOException
+    {
+        if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        int count = output.drain(b, off, len);
+        while (count < len && !encoderFinished)
+        {
+            if (!input.isEnded() && totalIn - consumed < Encoder.kBlockLookAhead)
+            {
+                break;
+            }
+            step();
+            count += output.drain(b, off + count, len - count);
+        }
+        return count;
+    }
+
+    public int encode(byte[] b)
+            throws IOException
+    {
+        return encode(b, 0, b.length);
+    }
+
+    /**
+     * Discards any pending data so that a new stream can be compressed with the same encoder.
+     */
+    public void reset()
+    {
+        if (started && !encoderFinished)
+        {
+            encoder.endEncoding();
+        }
+        input.clear();
+        output.clear();
+        totalIn = 0;
+        consumed = 0;
+        started = false;
+        encoderFinished = false;
+    }
+
+    /**
+     * @return the number of uncompressed bytes given so far
+     */
+    public long getBytesRead()
+    {
+        return totalIn;
+    }
+
+    private void step()
+            throws IOException
+    {
+        if (!started)
+        {
+            encoder.writeCoderProperties(output);
+            output.write(LzmaEncoderWrapper.MINUS_ONE);
+            encoder.beginEncoding(input.asInputStream(), output);
+            started = true;
+        }
+        encoder.codeOneBlock(processedInSize, processedOutSize, blockFinished);
+        if (blockFinished[0])
+        {
+            encoder.endEncoding();
+            consumed = totalIn;
+            encoderFinished = true;
+        }
+        else
+        {
+            consumed = processedInSize[0];
+        }
+    }
+}
@@ -22,47 +22,206 @@ package lzma.streams;
 import lzma.sdk.lzma.Decoder;
 import org.cservenak.streams.Coder;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 public class LzmaDecoderWrapper
         implements Coder
 {
     private final Decoder decoder;
 
+    private final boolean concatenated;
+
     public LzmaDecoderWrapper(final Decoder decoder)
+    {
+        this(decoder, false);
+    }
+
+    /**
+     * @param concatenated whether the .lzma streams written with the same properties right after the first one,
+     *                     like the output of {@link LzmaOutputStream.Builder#useLowLatencyFlush()}, are decoded as
+     *                     well; this is implied by a decoder in solid mode
+     */
+    public LzmaDecoderWrapper(final Decoder decoder, final boolean concatenated)
     {
         this.decoder = decoder;
+        this.concatenated = concatenated;
     }
 
+    /**
+     * Decodes a .lzma stream, leaving <code>in</code> positioned right after it. Other data following it is
+     * ignored.
+     * <p>
+     * Concatenated streams are decoded one after the other, each one continuing the previous one if the decoder
+     * is in solid mode. The input is then read in blocks and may be read past the last stream. A stream that
+     * fails before producing any output is taken as trailing data and ignored.
+     */
     @Override
     public void code(final InputStream in, final OutputStream out)
             throws IOException
     {
-        byte[] properties = new byte[5];
-        if (in.read(properties) != 5)
+        final byte[] properties = readProperties(in);
+        if (!decoder.setDecoderProperties(properties))
         {
-            throw new IOException("LZMA file has no header!");
+            throw new IOException("Decoder properties cannot be set!");
         }
+        final boolean chained = concatenated || decoder.isSolid();
+        final CountingOutputStream counted = new CountingOutputStream(out);
+        // what is read ahead is recovered by nextMember
+        if (!decoder.code(in, counted, readSize(in), chained))
+        {
+            throw new IOException("Decoding unsuccessful!");
+        }
+        while (chained)
+        {
+            final InputStream member = nextMember(in, decoder, properties);
+            if (member == null)
+            {
+                return;
+            }
+            final long before = counted.count;
+            boolean ok;
+            try
+            {
+                ok = decoder.code(member, counted, readHeader(member, decoder), true);
+            }
+            catch (IOException e)
+            {
+                if (counted.count != before)
+                {
+                    throw e;
+                }
+                ok = false;
+            }
+            if (!ok)
+            {
+                if (counted.count != before)
+                {
+                    throw new IOException("Decoding unsuccessful!");
+                }
+                return;
+            }
+        }
+    }
 
-        if (!decoder.setDecoderProperties(properties))
+    /**
+     * Looks past the stream the decoder has just finished, whose header started with <code>properties</code>.
+     * Only a stream written with the same properties, as by {@link LzmaOutputStream} with low latency flushes,
+     * is taken as the next member: anything else that follows is ignored, like any trailing data.
+     *
+     * @return the input positioned at the header of the next member, or <code>null</code> if there is none
+     */
+    static InputStream nextMember(final InputStream in, final Decoder decoder, final byte[] properties)
+            throws IOException
+    {
+        // the decoder may have read the start of the next member ahead
+        final byte[] head = new byte[Math.max(decoder.getBufferedInputSize(), Lzma.HEADER_SIZE + 1)];
+        int count = decoder.readBufferedInput(head, 0, head.length);
+        while (count <= Lzma.HEADER_SIZE)
+        {
+            final int n = in.read(head, count, Lzma.HEADER_SIZE + 1 - count);
+            if (n < 0)
+            {
+                return null;
+            }
+            count += n;
+        }
+        for (int i = 0; i < properties.length; i++)
+        {
+            if (head[i] != properties[i])
+            {
+                return null;
+            }
+        }
+        long size = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            size |= ((long) (head[properties.length + i] & 0xFF)) << (8 * i);
+        }
+        // the range coder always starts with a zero byte
+        if (size < -1 || head[Lzma.HEADER_SIZE] != 0)
+        {
+            return null;
+        }
+        return new PrefixedInputStream(Arrays.copyOf(head, count), in);
+    }
+
+    /**
+     * Reads the .lzma header (properties and stream size) and configures the decoder with it.
+     *
+     * @return the uncompressed stream size, or -1 if unknown
+     */
+    static long readHeader(final InputStream in, final Decoder decoder)
+            throws IOException
+    {
+        if (!decoder.setDecoderProperties(readProperties(in)))
         {
             throw new IOException("Decoder properties cannot be set!");
         }
+        return readSize(in);
+    }
 
-		long outSize = 0;
-		for (int i = 0; i < 8; i++)
-		{
-			int v = in.read();
-			if (v < 0)
-				throw new IOException("Can't read stream size");
-			outSize |= ((long)v) << (8 * i);
-		}
+    static byte[] readProperties(final InputStream in)
+            throws IOException
+    {
+        byte[] properties = new byte[5];
+        int count = 0;
+        while (count < properties.length)
+        {
+            int n = in.read(properties, count, properties.length - count);
+            if (n < 0)
+            {
+                throw new IOException("LZMA file has no header!");
+            }
+            count += n;
+        }
+        return properties;
+    }
 
-        if (!decoder.code(in, out, outSize))
+    static long readSize(final InputStream in)
+            throws IOException
+    {
+        long outSize = 0;
+        for (int i = 0; i < 8; i++)
         {
-            throw new IOException("Decoding unsuccessful!");
+            int v = in.read();
+            if (v < 0)
+            {
+                throw new IOException("Can't read stream size");
+            }
+            outSize |= ((long) v) << (8 * i);
+        }
+        return outSize;
+    }
+
+    // tells whether a stream produced any output before failing
+    private static final class CountingOutputStream
+            extends FilterOutputStream
+    {
+        private long count;
+
+        CountingOutputStream(final OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b)
+                throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
         }
     }
 }
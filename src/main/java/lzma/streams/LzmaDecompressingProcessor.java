@@ -0,0 +1,79 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Decoder;
+
+import java.io.IOException;
+
+/**
+ * A {@link java.util.concurrent.Flow.Processor} decompressing an .lzma stream received in chunks.
+ * <p>
+ * Input is requested from the publisher one chunk at a time, and only when the decoder is short of data and the
+ * subscriber wants more; data following the end of the stream is ignored and the publisher is then cancelled.
+ * Coding happens on whichever thread signals the processor. Input buffers are not modified and emitted buffers
+ * belong to the subscriber.
+ *
+ * @author Julien Ponge
+ */
+public class LzmaDecompressingProcessor
+        extends CodingProcessor
+{
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+    private final LzmaDecompressor decompressor;
+
+    public LzmaDecompressingProcessor(final Decoder decoder)
+    {
+        this(decoder, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the largest size of the emitted chunks
+     */
+    public LzmaDecompressingProcessor(final Decoder decoder, final int chunkSize)
+    {
+        super(chunkSize);
+        this.decompressor = new LzmaDecompressor(decoder);
+    }
+
+    void consume(byte[] b, int off, int len)
+    {
+        decompressor.setInput(b, off, len);
+    }
+
+    void end()
+    {
+        decompressor.finish();
+    }
+
+    int produce(byte[] b, int off, int len)
+            throws IOException
+    {
+        return decompressor.decode(b, off, len);
+    }
+
+    boolean needsInput()
+    {
+        return decompressor.needsInput();
+    }
+
+    boolean done()
+    {
+        return decompressor.finished();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Decoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A non-blocking LZMA decompressor shaped after {@link java.util.zip.Inflater}: compressed data is pushed
+ * with {@link #setInput(byte[], int, int)} and decoded data is pulled with {@link #decode(byte[], int, int)},
+ * on the calling thread. The input is a complete .lzma stream, header included.
+ * <p>
+ * Since a symbol cannot be decoded until all of its bytes are there, some input is held back until either
+ * more of it arrives or {@link #finish()} tells that the stream is complete. Instances are not thread-safe.
+ *
+ * @author Julien Ponge
+ */
+public class LzmaDecompressor
+{
+    private static final int HEADER_SIZE = 13;
+
+    // the range decoder reads at most one byte per decoded bit: 48 bits for a match with
+    // the largest distance, that is 24 input bytes per output byte for a 2-byte match
+    private static final int MAX_SYMBOL_INPUT = 48;
+
+    private static final int MAX_INPUT_PER_BYTE = 24;
+
+    private final Decoder decoder;
+
+    private final ByteQueue input = new ByteQueue(1 << 16);
+
+    private boolean started;
+
+    public LzmaDecompressor(final Decoder decoder)
+    {
+        this.decoder = decoder;
+    }
+
+    /**
+     * Queues some compressed data. The bytes are copied, so the array can be reused as soon as this method returns.
+     */
+    public void setInput(byte[] b, int off, int len)
+    {
+        if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        if (input.isEnded())
+        {
+            throw new IllegalStateException("finish() has been called");
+        }
+        input.write(b, off, len);
+    }
+
+    public void setInput(byte[] b)
+    {
+        setInput(b, 0, b.length);
+    }
+
+    /**
+     * Indicates that all the compressed data has been given.
+     */
+    public void finish()
+    {
+        input.end();
+    }
+
+    /**
+     * @return true if more input is needed before {@link #decode(byte[], int, int)} can make progress
+     */
+    public boolean needsInput()
+    {
+        if (input.isEnded() || finished())
+        {
+            return false;
+        }
+        if (!started)
+        {
+            return input.size() < HEADER_SIZE + 5;
+        }
+        return pending() < MAX_SYMBOL_INPUT + MAX_SYMBOL_INPUT + MAX_INPUT_PER_BYTE;
+    }
+
+    /**
+     * @return true once the end of the stream has been decoded
+     */
+    public boolean finished()
+    {
+        return started && decoder.isFinished();
+    }
+
+    /**
+     * @return the number of compressed bytes given but not consumed yet, such as data following the stream
+     */
+    public int getRemaining()
+    {
+        return pending();
+    }
+
+    /**
+     * Decodes into <code>b</code> as much as the pending input allows.
+     *
+     * @return the number of bytes decoded, 0 meaning that more input is needed or that the stream is finished
+     * @throws IOException if the data is corrupted or truncated
+     */
+    public int decode(byte[] b, int off, int len)
+            throws IOException
+    {
+        if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        if (!started)
+        {
+            if (input.size() < HEADER_SIZE + 5)
+            {
+                if (input.isEnded())
+                {
+                    throw new EOFException("Truncated LZMA stream");
+                }
+                return 0;
+            }
+            decoder.beginDecoding(input.asInputStream(), LzmaDecoderWrapper.readHeader(input.asInputStream(), decoder));
+            started = true;
+        }
+        int count = 0;
+        while (count < len && !decoder.isFinished())
+        {
+            int budget = len - count;
+            if (!input.isEnded())
+            {
+                budget = Math.min(budget, (pending() - (MAX_SYMBOL_INPUT << 1)) / MAX_INPUT_PER_BYTE);
+                if (budget <= 0)
+                {
+                    break;
+                }
+            }
+            int n = decoder.decode(b, off + count, budget);
+            if (n < 0)
+            {
+                break;
+            }
+            count += n;
+        }
+        if (decoder.isFinished())
+        {
+            decoder.endDecoding();
+        }
+        return count;
+    }
+
+    public int decode(byte[] b)
+            throws IOException
+    {
+        return decode(b, 0, b.length);
+    }
+
+    // the decoder reads its input in blocks: part of what has been given may sit in its own buffer
+    private int pending()
+    {
+        return started ? input.size() + decoder.getBufferedInputSize() : input.size();
+    }
+
+    /**
+     * Discards any pending data so that a new stream can be decoded with the same decoder.
+     */
+    public void reset()
+            throws IOException
+    {
+        if (started)
+        {
+            decoder.endDecoding();
+        }
+        input.clear();
+        started = false;
+    }
+}
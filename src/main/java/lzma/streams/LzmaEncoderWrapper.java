@@ -21,10 +21,14 @@ package lzma.streams;
 
 import lzma.sdk.lzma.Encoder;
 import org.cservenak.streams.Coder;
+import org.cservenak.streams.CoderExecutors;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 
 import static lzma.sdk.lzma.Encoder.EMatchFinderTypeBT2;
 import static lzma.sdk.lzma.Encoder.EMatchFinderTypeBT4;
@@ -32,7 +36,7 @@ import static lzma.sdk.lzma.Encoder.EMatchFinderTypeBT4;
 public class LzmaEncoderWrapper
         implements Coder
 {
-    private final static byte[] MINUS_ONE = new byte[8];
+    final static byte[] MINUS_ONE = new byte[8];
     static {
         for (int i = 0; i < MINUS_ONE.length; ++i) {
             MINUS_ONE[i] = (byte) -1;
@@ -41,19 +45,123 @@ public class LzmaEncoderWrapper
     
     private final Encoder encoder;
 
+    private final Executor executor;
+
+    private final long inputSize;
+
     public LzmaEncoderWrapper(final Encoder encoder)
+    {
+        this(encoder, null);
+    }
+
+    /**
+     * @param executor the executor that {@link LzmaOutputStream} runs this wrapper on, or <code>null</code> for
+     *                 the default one
+     */
+    public LzmaEncoderWrapper(final Encoder encoder, final Executor executor)
+    {
+        this(encoder, executor, -1);
+    }
+
+    /**
+     * @param inputSize the exact number of bytes that will be encoded, written in the header so that decoders
+     *                  can size their output; -1 if unknown
+     */
+    public LzmaEncoderWrapper(final Encoder encoder, final Executor executor, final long inputSize)
     {
         this.encoder = encoder;
+        this.executor = executor;
+        this.inputSize = inputSize;
+    }
+
+    /**
+     * @return the executor to run this wrapper on, or <code>null</code> for the default one
+     */
+    public Executor getExecutor()
+    {
+        return executor;
     }
 
     @Override
     public void code(final InputStream in, final OutputStream out)
             throws IOException
     {
+        if (inputSize < 0)
+        {
+            codeMembers(in, out);
+            return;
+        }
+
         encoder.writeCoderProperties(out);
-        // write -1 as "unknown" for file size
-        out.write(MINUS_ONE);
-        encoder.code(in, out, -1, -1, null);
+        for (int i = 0; i < 8; i++)
+        {
+            out.write((int) (inputSize >>> (8 * i)) & 0xFF);
+        }
+        final CountingInputStream counting = new CountingInputStream(in);
+        encoder.code(counting, out, inputSize, -1, null);
+        if (counting.count != inputSize)
+        {
+            throw new IOException("Declared input size " + inputSize + " but got " + counting.count + " bytes");
+        }
+    }
+
+    // An end of input may only be a flush barrier (see LzmaOutputStream.Builder.useLowLatencyFlush()): the
+    // stream is then completed and flushed, and a new one is started if more input comes, each one being
+    // a complete .lzma stream ended by an end marker.
+    private void codeMembers(final InputStream in, final OutputStream out)
+            throws IOException
+    {
+        InputStream member = in;
+        while (true)
+        {
+            encoder.writeCoderProperties(out);
+            // write -1 as "unknown" for file size
+            out.write(MINUS_ONE);
+            encoder.code(member, out, -1, -1, null);
+
+            out.flush();
+            int next = in.read();
+            if (next < 0)
+            {
+                return;
+            }
+            member = new PrefixedInputStream(new byte[]{(byte) next}, in);
+        }
+    }
+
+    private static final class CountingInputStream
+            extends FilterInputStream
+    {
+        private long count;
+
+        CountingInputStream(final InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            int b = in.read();
+            if (b >= 0)
+            {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            int n = in.read(b, off, len);
+            if (n > 0)
+            {
+                count += n;
+            }
+            return n;
+        }
     }
 
     /**
@@ -63,10 +171,15 @@ public class LzmaEncoderWrapper
      * <li>end marker mode: true</li>
      * <li>match finder: BT4</li>
      * <li>number of fast bytes: 0x20</li>
+     * <li>executor: a new platform thread per stream</li>
      * </ul>
      */
     public static class Builder
     {
+        private Executor executor;
+
+        private long inputSize = -1;
+
         private int dictionnarySize = 1 << 23;
 
         private boolean endMarkerMode = true;
@@ -129,16 +242,51 @@ public class LzmaEncoderWrapper
             return this;
         }
 
+        /**
+         * Declares the exact number of bytes that will be encoded. The size is written in the header instead of
+         * "unknown" and the end marker is left out; encoding fails if the input does not match.
+         */
+        public Builder useInputSize(long inputSize)
+        {
+            if (inputSize < 0)
+            {
+                throw new IllegalArgumentException("Negative input size: " + inputSize);
+            }
+            this.inputSize = inputSize;
+            return this;
+        }
+
+        public Builder useExecutor(Executor executor)
+        {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder useThreadFactory(ThreadFactory threadFactory)
+        {
+            this.executor = CoderExecutors.threadPerTask(threadFactory);
+            return this;
+        }
+
+        /**
+         * @throws UnsupportedOperationException if the running JVM has no virtual threads
+         */
+        public Builder useVirtualThreads()
+        {
+            this.executor = CoderExecutors.virtualThreadPerTask();
+            return this;
+        }
+
         public LzmaEncoderWrapper build()
         {
             Encoder encoder = new Encoder();
 
             encoder.setDictionarySize(dictionnarySize);
-            encoder.setEndMarkerMode(endMarkerMode);
+            encoder.setEndMarkerMode(endMarkerMode && inputSize < 0);
             encoder.setMatchFinder(matchFinder);
             encoder.setNumFastBytes(numFastBytes);
 
-            return new LzmaEncoderWrapper(encoder);
+            return new LzmaEncoderWrapper(encoder, executor, inputSize);
         }
     }
 }
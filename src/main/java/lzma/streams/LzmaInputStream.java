@@ -19,23 +19,269 @@
 package lzma.streams;
 
 import lzma.sdk.lzma.Decoder;
-import org.cservenak.streams.CoderInputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * An input stream that uses LZMA compression.
+ * <p>
+ * Decoding happens on the thread calling the <code>read</code> methods: each call decodes exactly
+ * as many bytes as requested, without any helper thread or pipe. Data following the .lzma stream is ignored,
+ * unless concatenated streams are asked for: they are then read as one, like the output of
+ * {@link LzmaOutputStream.Builder#useLowLatencyFlush()}. With a decoder in solid mode, each one continues the
+ * previous one, as written with {@link LzmaOutputStream.Builder#useSolidFlush()}.
  *
  * @author Julien Ponge
  * @author Tamas Cservenak
  */
 public class LzmaInputStream
-        extends CoderInputStream
+        extends InputStream
 {
+    private final InputStream in;
+
+    private final LzmaCoderPool pool;
+
+    private Decoder decoder;
+
+    private final byte[] single = new byte[1];
+
+    private boolean started;
+
+    private byte[] properties;
+
+    private final boolean concatenated;
+
+    private boolean lastMember;
+
+    // a chained member that has not produced any output yet, taken as trailing data if it fails
+    private boolean memberPending;
+
+    private boolean closed;
+
     public LzmaInputStream(final InputStream in, final Decoder lzmaDecoder)
             throws IOException
     {
-        super(in, new LzmaDecoderWrapper(lzmaDecoder));
+        this(in, lzmaDecoder, false);
+    }
+
+    /**
+     * @param concatenated whether the .lzma streams written with the same properties right after the first one
+     *                     are read as well; this is implied by a decoder in solid mode
+     */
+    public LzmaInputStream(final InputStream in, final Decoder lzmaDecoder, final boolean concatenated)
+            throws IOException
+    {
+        this.in = in;
+        this.decoder = lzmaDecoder;
+        this.pool = null;
+        this.concatenated = concatenated || lzmaDecoder.isSolid();
+    }
+
+    /**
+     * Takes a decoder matching the stream properties from <code>pool</code> instead of allocating one, and
+     * gives it back when the stream is closed.
+     */
+    public LzmaInputStream(final InputStream in, final LzmaCoderPool pool)
+            throws IOException
+    {
+        this(in, pool, false);
+    }
+
+    /**
+     * Same as {@link #LzmaInputStream(InputStream, LzmaCoderPool)}, reading concatenated streams if
+     * <code>concatenated</code> is set.
+     */
+    public LzmaInputStream(final InputStream in, final LzmaCoderPool pool, final boolean concatenated)
+            throws IOException
+    {
+        this.in = in;
+        this.pool = pool;
+        this.concatenated = concatenated;
+    }
+
+    // for a decoder already positioned in the stream, as by LzmaCheckpointIndex: no member follows
+    static LzmaInputStream started(final InputStream in, final Decoder lzmaDecoder)
+            throws IOException
+    {
+        final LzmaInputStream stream = new LzmaInputStream(in, lzmaDecoder, false);
+        stream.started = true;
+        stream.lastMember = true;
+        return stream;
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte b[], int off, int len)
+            throws IOException
+    {
+        if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        start();
+        int n = decode(b, off, len);
+        while (n < 0 && nextMember())
+        {
+            n = decode(b, off, len);
+        }
+        return n;
+    }
+
+    private int decode(byte b[], int off, int len)
+            throws IOException
+    {
+        int n;
+        try
+        {
+            n = decoder.decode(b, off, len);
+        }
+        catch (IOException e)
+        {
+            if (!memberPending)
+            {
+                throw e;
+            }
+            lastMember = true;
+            return -1;
+        }
+        if (n > 0)
+        {
+            memberPending = false;
+        }
+        return n;
+    }
+
+    /**
+     * Skips <code>n</code> bytes, which still have to be decoded but are never copied out of the decoder window.
+     */
+    @Override
+    public long skip(long n)
+            throws IOException
+    {
+        ensureOpen();
+        start();
+        long skipped = skipMember(n);
+        while (skipped == 0 && n > 0 && decoder.isFinished() && nextMember())
+        {
+            skipped = skipMember(n);
+        }
+        return skipped;
+    }
+
+    private long skipMember(long n)
+            throws IOException
+    {
+        long skipped;
+        try
+        {
+            skipped = decoder.skip(n);
+        }
+        catch (IOException e)
+        {
+            if (!memberPending)
+            {
+                throw e;
+            }
+            lastMember = true;
+            return 0;
+        }
+        if (skipped > 0)
+        {
+            memberPending = false;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        if (pool != null && decoder != null)
+        {
+            pool.returnDecoder(decoder);
+        }
+        else if (started)
+        {
+            decoder.endDecoding();
+        }
+        in.close();
+    }
+
+    private void start()
+            throws IOException
+    {
+        if (started)
+        {
+            return;
+        }
+        properties = LzmaDecoderWrapper.readProperties(in);
+        if (pool != null)
+        {
+            try
+            {
+                decoder = pool.borrowDecoder(properties);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IOException("Decoder properties cannot be set!", e);
+            }
+        }
+        else if (!decoder.setDecoderProperties(properties))
+        {
+            throw new IOException("Decoder properties cannot be set!");
+        }
+        decoder.beginDecoding(in, LzmaDecoderWrapper.readSize(in));
+        started = true;
+    }
+
+    // Concatenated streams, as written by LzmaOutputStream with low latency flushes, are read one after the
+    // other; anything else following the first stream is ignored.
+    private boolean nextMember()
+            throws IOException
+    {
+        if (lastMember || !concatenated)
+        {
+            return false;
+        }
+        InputStream member = LzmaDecoderWrapper.nextMember(in, decoder, properties);
+        decoder.endDecoding();
+        if (member == null)
+        {
+            lastMember = true;
+            return false;
+        }
+        try
+        {
+            decoder.beginDecoding(member, LzmaDecoderWrapper.readHeader(member, decoder));
+        }
+        catch (IOException e)
+        {
+            lastMember = true;
+            return false;
+        }
+        memberPending = true;
+        return true;
+    }
+
+    private void ensureOpen()
+            throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed");
+        }
     }
 }
@@ -19,10 +19,13 @@
 package lzma.streams;
 
 import lzma.sdk.lzma.Encoder;
+import org.cservenak.streams.CoderExecutors;
 import org.cservenak.streams.CoderOutputStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 
 import static lzma.sdk.lzma.Encoder.EMatchFinderTypeBT2;
 import static lzma.sdk.lzma.Encoder.EMatchFinderTypeBT4;
@@ -36,10 +39,40 @@ import static lzma.sdk.lzma.Encoder.EMatchFinderTypeBT4;
 public class LzmaOutputStream
         extends CoderOutputStream
 {
+    private final LzmaCoderPool pool;
+
+    private final Encoder pooledEncoder;
+
+    private boolean pooledReturned;
+
+    private final boolean lowLatencyFlush;
+
+    /**
+     * The encoder runs on the executor configured on the wrapper, if any.
+     */
     public LzmaOutputStream(final OutputStream out, final LzmaEncoderWrapper wrapper)
             throws IOException
     {
-        super(out, wrapper);
+        this(out, wrapper, wrapper.getExecutor());
+    }
+
+    /**
+     * @param executor runs the encoder, or <code>null</code> for {@link CoderExecutors#defaultExecutor()}
+     */
+    public LzmaOutputStream(final OutputStream out, final LzmaEncoderWrapper wrapper, final Executor executor)
+            throws IOException
+    {
+        this(out, wrapper, executor, null, null, false);
+    }
+
+    private LzmaOutputStream(final OutputStream out, final LzmaEncoderWrapper wrapper, final Executor executor,
+                             final LzmaCoderPool pool, final Encoder pooledEncoder, final boolean lowLatencyFlush)
+            throws IOException
+    {
+        super(out, wrapper, executor);
+        this.pool = pool;
+        this.pooledEncoder = pooledEncoder;
+        this.lowLatencyFlush = lowLatencyFlush;
     }
 
     public LzmaOutputStream(final OutputStream out, final Encoder lzmaEncoder)
@@ -48,6 +81,57 @@ public class LzmaOutputStream
         this(out, new LzmaEncoderWrapper(lzmaEncoder));
     }
 
+    /**
+     * @param executor runs the encoder, or <code>null</code> for {@link CoderExecutors#defaultExecutor()}
+     */
+    public LzmaOutputStream(final OutputStream out, final Encoder lzmaEncoder, final Executor executor)
+            throws IOException
+    {
+        this(out, new LzmaEncoderWrapper(lzmaEncoder), executor);
+    }
+
+    /**
+     * Hands the data written so far over to the encoder. In low latency mode, the encoder also compresses all of
+     * it and the result is flushed to the underlying stream before this method returns.
+     *
+     * @see Builder#useLowLatencyFlush()
+     */
+    @Override
+    public void flush()
+            throws IOException
+    {
+        if (lowLatencyFlush)
+        {
+            flushCoder();
+        }
+        else
+        {
+            super.flush();
+        }
+    }
+
+    /**
+     * Completes the stream; an encoder taken from a pool is given back once it is done.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        super.close();
+        if (pool != null)
+        {
+            synchronized (this)
+            {
+                if (pooledReturned)
+                {
+                    return;
+                }
+                pooledReturned = true;
+            }
+            pool.returnEncoder(pooledEncoder);
+        }
+    }
+
     /**
      * A convenient builder that makes it easier to configure the LZMA encoder.
      * Default values:
@@ -56,12 +140,23 @@ public class LzmaOutputStream
      * <li>end marker mode: true</li>
      * <li>match finder: BT4</li>
      * <li>number of fast bytes: 0x20</li>
+     * <li>executor: a new platform thread per stream</li>
      * </ul>
      */
     public static class Builder
     {
         private final OutputStream out;
 
+        private Executor executor;
+
+        private long inputSize = -1;
+
+        private LzmaCoderPool pool;
+
+        private boolean lowLatencyFlush;
+
+        private boolean solidFlush;
+
         private int dictionnarySize = 1 << 23;
 
         private boolean endMarkerMode = true;
@@ -129,16 +224,106 @@ public class LzmaOutputStream
             return this;
         }
 
+        /**
+         * Declares the exact number of bytes that will be written. The size is written in the header instead of
+         * "unknown" and the end marker is left out; closing the stream fails if the data does not match.
+         */
+        public Builder useInputSize(long inputSize)
+        {
+            if (inputSize < 0)
+            {
+                throw new IllegalArgumentException("Negative input size: " + inputSize);
+            }
+            this.inputSize = inputSize;
+            return this;
+        }
+
+        /**
+         * Takes the encoder from <code>pool</code> instead of allocating one, and gives it back when the stream
+         * is closed.
+         */
+        public Builder usePool(LzmaCoderPool pool)
+        {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Makes {@link LzmaOutputStream#flush()} push out everything written so far in compressed form, so that
+         * the other end can decode it right away, as interactive protocols need. Since an LZMA stream cannot be
+         * flushed midway, each flush ends the current stream and the next write starts a new one: the output is
+         * a sequence of concatenated .lzma streams, to be read by an {@link LzmaInputStream} created with
+         * <code>concatenated</code> set. Each flush costs a header and an end marker, about 20 bytes, and the
+         * dictionary starts over afterwards, unless {@link #useSolidFlush()} is used. Flushing without having
+         * written anything since the previous flush costs nothing.
+         * <p>
+         * The input size cannot be declared in this mode.
+         */
+        public Builder useLowLatencyFlush()
+        {
+            this.lowLatencyFlush = true;
+            return this;
+        }
+
+        /**
+         * Like {@link #useLowLatencyFlush()}, except that each stream started after a flush continues the
+         * previous one: it compresses against the data written before and with the statistics gathered so
+         * far, so frequent flushes of small messages no longer lose the compression ratio. The output must be
+         * read by an {@link LzmaInputStream} whose decoder is in solid mode, see
+         * {@link lzma.sdk.lzma.Decoder#setSolid(boolean)}.
+         */
+        public Builder useSolidFlush()
+        {
+            this.lowLatencyFlush = true;
+            this.solidFlush = true;
+            return this;
+        }
+
+        public Builder useExecutor(Executor executor)
+        {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder useThreadFactory(ThreadFactory threadFactory)
+        {
+            this.executor = CoderExecutors.threadPerTask(threadFactory);
+            return this;
+        }
+
+        /**
+         * @throws UnsupportedOperationException if the running JVM has no virtual threads
+         */
+        public Builder useVirtualThreads()
+        {
+            this.executor = CoderExecutors.virtualThreadPerTask();
+            return this;
+        }
+
         public LzmaOutputStream build() throws IOException
         {
-            Encoder encoder = new Encoder();
+            if (lowLatencyFlush && inputSize >= 0)
+            {
+                throw new IllegalStateException("The input size cannot be declared with low latency flushes");
+            }
+            Encoder encoder;
+            if (pool != null)
+            {
+                encoder = pool.borrowEncoder(dictionnarySize, matchFinder, numFastBytes, 3, 0, 2);
+            }
+            else
+            {
+                encoder = new Encoder();
 
-            encoder.setDictionarySize(dictionnarySize);
-            encoder.setEndMarkerMode(endMarkerMode);
-            encoder.setMatchFinder(matchFinder);
-            encoder.setNumFastBytes(numFastBytes);
+                encoder.setDictionarySize(dictionnarySize);
+                encoder.setMatchFinder(matchFinder);
+                encoder.setNumFastBytes(numFastBytes);
+            }
+            encoder.setEndMarkerMode((endMarkerMode || lowLatencyFlush) && inputSize < 0);
+            encoder.setSolid(solidFlush);
 
-            return new LzmaOutputStream(out, encoder);
+            return new LzmaOutputStream(out, new LzmaEncoderWrapper(encoder, executor, inputSize), executor, pool,
+                    (pool != null) ? encoder : null, lowLatencyFlush);
         }
     }
 }
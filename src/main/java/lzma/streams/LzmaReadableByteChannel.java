@@ -0,0 +1,124 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Decoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A readable channel that decompresses an .lzma stream read from another channel.
+ * <p>
+ * Compressed data is read from the source in large chunks through a direct buffer, and decoded data goes
+ * straight into the caller's buffer when it is backed by an array. The source must be in blocking mode.
+ * Decoding happens on the calling thread and instances are not thread-safe.
+ *
+ * @author Julien Ponge
+ */
+public class LzmaReadableByteChannel
+        implements ReadableByteChannel
+{
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final ChannelInputStream in;
+
+    private final Decoder decoder;
+
+    private byte[] scratch;
+
+    private boolean started;
+
+    private boolean closed;
+
+    public LzmaReadableByteChannel(final ReadableByteChannel source, final Decoder decoder)
+    {
+        this(source, decoder, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the size of the direct buffer compressed data is read into
+     */
+    public LzmaReadableByteChannel(final ReadableByteChannel source, final Decoder decoder, final int bufferSize)
+    {
+        this.in = new ChannelInputStream(source, bufferSize);
+        this.decoder = decoder;
+    }
+
+    public int read(ByteBuffer dst)
+            throws IOException
+    {
+        if (closed)
+        {
+            throw new ClosedChannelException();
+        }
+        if (!started)
+        {
+            decoder.beginDecoding(in, LzmaDecoderWrapper.readHeader(in, decoder));
+            started = true;
+        }
+        int len = dst.remaining();
+        if (len == 0)
+        {
+            return 0;
+        }
+        int n;
+        if (dst.hasArray())
+        {
+            n = decoder.decode(dst.array(), dst.arrayOffset() + dst.position(), len);
+            if (n > 0)
+            {
+                dst.position(dst.position() + n);
+            }
+        }
+        else
+        {
+            if (scratch == null)
+            {
+                scratch = new byte[1 << 16];
+            }
+            n = decoder.decode(scratch, 0, Math.min(len, scratch.length));
+            if (n > 0)
+            {
+                dst.put(scratch, 0, n);
+            }
+        }
+        return n;
+    }
+
+    public boolean isOpen()
+    {
+        return !closed;
+    }
+
+    public void close()
+            throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        if (started)
+        {
+            decoder.endDecoding();
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A writable channel that compresses what is written to it as an .lzma stream into another channel.
+ * <p>
+ * Encoding happens on the calling thread with an {@link LzmaCompressor}, and compressed data is written to the
+ * target in large chunks. The stream is completed when this channel is closed, which also closes the target.
+ * When the target is seekable, such as a {@link java.nio.channels.FileChannel} not opened for appending, the
+ * uncompressed size can be patched into the header on close so that decoders know it up front.
+ * Instances are not thread-safe.
+ *
+ * @author Julien Ponge
+ */
+public class LzmaWritableByteChannel
+        implements WritableByteChannel
+{
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private static final int INPUT_CHUNK_SIZE = 1 << 16;
+
+    private final WritableByteChannel target;
+
+    private final LzmaCompressor compressor;
+
+    private final ByteBuffer output;
+
+    // position of the header in the target, or -1 if the size is not patched
+    private final long headerPosition;
+
+    private byte[] scratch;
+
+    private boolean closed;
+
+    public LzmaWritableByteChannel(final WritableByteChannel target, final Encoder encoder)
+    {
+        this(target, encoder, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the size of the buffer compressed data is gathered in before being written to the target
+     */
+    public LzmaWritableByteChannel(final WritableByteChannel target, final Encoder encoder, final int bufferSize)
+    {
+        this.target = target;
+        this.compressor = new LzmaCompressor(encoder);
+        this.output = ByteBuffer.allocate(bufferSize);
+        this.headerPosition = -1;
+    }
+
+    /**
+     * Writes the real uncompressed size into the header once the channel is closed, by seeking back to it.
+     * The stream still ends with an end marker, so it can also be decoded before being patched.
+     *
+     * @param target a seekable channel, positioned where the stream is to start
+     */
+    public LzmaWritableByteChannel(final SeekableByteChannel target, final Encoder encoder, final int bufferSize,
+                                   final boolean patchSize)
+            throws IOException
+    {
+        this.target = target;
+        this.compressor = new LzmaCompressor(encoder);
+        this.output = ByteBuffer.allocate(bufferSize);
+        this.headerPosition = patchSize ? target.position() : -1;
+    }
+
+    public int write(ByteBuffer src)
+            throws IOException
+    {
+        if (closed)
+        {
+            throw new ClosedChannelException();
+        }
+        int written = 0;
+        while (src.hasRemaining())
+        {
+            int n = Math.min(src.remaining(), INPUT_CHUNK_SIZE);
+            if (src.hasArray())
+            {
+                compressor.setInput(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.position() + n);
+            }
+            else
+            {
+                if (scratch == null)
+                {
+                    scratch = new byte[INPUT_CHUNK_SIZE];
+                }
+                src.get(scratch, 0, n);
+                compressor.setInput(scratch, 0, n);
+            }
+            written += n;
+            encode();
+        }
+        return written;
+    }
+
+    public boolean isOpen()
+    {
+        return !closed;
+    }
+
+    /**
+     * Encodes the remaining data and the end of the stream, then closes the target channel.
+     */
+    public void close()
+            throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            compressor.finish();
+            encode();
+            flushOutput();
+            if (headerPosition >= 0)
+            {
+                patchSize();
+            }
+        }
+        finally
+        {
+            target.close();
+        }
+    }
+
+    private void encode()
+            throws IOException
+    {
+        while (!compressor.finished())
+        {
+            int n = compressor.encode(output.array(), output.position(), output.remaining());
+            if (n == 0)
+            {
+                if (output.hasRemaining())
+                {
+                    return;
+                }
+                flushOutput();
+                continue;
+            }
+            output.position(output.position() + n);
+            if (!output.hasRemaining())
+            {
+                flushOutput();
+            }
+        }
+    }
+
+    private void patchSize()
+            throws IOException
+    {
+        final SeekableByteChannel channel = (SeekableByteChannel) target;
+        final long size = compressor.getBytesRead();
+        final ByteBuffer field = ByteBuffer.allocate(8);
+        for (int i = 0; i < 8; i++)
+        {
+            field.put((byte) (size >>> (8 * i)));
+        }
+        field.flip();
+        final long end = channel.position();
+        channel.position(headerPosition + Encoder.kPropSize);
+        while (field.hasRemaining())
+        {
+            channel.write(field);
+        }
+        channel.position(end);
+    }
+
+    private void flushOutput()
+            throws IOException
+    {
+        output.flip();
+        while (output.hasRemaining())
+        {
+            target.write(output);
+        }
+        output.clear();
+    }
+}
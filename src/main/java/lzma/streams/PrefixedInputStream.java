@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a few bytes put back in front of a stream, then the stream itself. Unlike with
+ * {@link java.io.SequenceInputStream}, the stream is never closed: it is shared by successive readers.
+ *
+ * @author Julien Ponge
+ */
+final class PrefixedInputStream
+        extends FilterInputStream
+{
+    private final byte[] prefix;
+
+    private int position;
+
+    PrefixedInputStream(final byte[] prefix, final InputStream in)
+    {
+        super(in);
+        this.prefix = prefix;
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        return (position < prefix.length) ? prefix[position++] & 0xFF : in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (position < prefix.length && len > 0)
+        {
+            int n = Math.min(len, prefix.length - position);
+            System.arraycopy(prefix, position, b, off, n);
+            position += n;
+            return n;
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n)
+            throws IOException
+    {
+        if (position < prefix.length && n > 0)
+        {
+            int skipped = (int) Math.min(n, prefix.length - position);
+            position += skipped;
+            return skipped;
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public int available()
+            throws IOException
+    {
+        return (prefix.length - position) + in.available();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void close()
+    {
+        // the underlying stream belongs to the caller
+    }
+}
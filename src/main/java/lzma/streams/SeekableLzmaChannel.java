@@ -0,0 +1,294 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Decoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only channel giving random access to the uncompressed contents of a seekable LZMA container, as
+ * written by {@link SeekableLzmaOutputStream}. A read only decodes the blocks covering the requested range,
+ * and the most recently used blocks are kept decoded in a cache.
+ * <p>
+ * The container is laid out as follows, integers being little-endian:
+ * <pre>
+ * block 0 ... block n-1   regular .lzma streams, with their uncompressed size in the header
+ * index                   n + 1 entries of (compressed offset: 8 bytes, uncompressed offset: 8 bytes),
+ *                         the last one holding the total sizes
+ * trailer                 index offset: 8 bytes, n: 4 bytes, magic "LZMS": 4 bytes
+ * </pre>
+ * Offsets are relative to the start of the container. The channel methods are synchronized.
+ *
+ * @author Julien Ponge
+ */
+public class SeekableLzmaChannel
+        implements SeekableByteChannel
+{
+    static final int MAGIC = 0x534D5A4C;
+
+    static final int TRAILER_SIZE = 16;
+
+    public static final int DEFAULT_CACHED_BLOCKS = 8;
+
+    private final SeekableByteChannel source;
+
+    private final long start;
+
+    private final long[] compressedOffsets;
+
+    private final long[] uncompressedOffsets;
+
+    private final Map<Integer, byte[]> cache;
+
+    private final Decoder decoder = new Decoder();
+
+    private long position;
+
+    private boolean closed;
+
+    public SeekableLzmaChannel(final SeekableByteChannel source)
+            throws IOException
+    {
+        this(source, DEFAULT_CACHED_BLOCKS);
+    }
+
+    /**
+     * Reads the index of the container found between the current position of <code>source</code> and its end.
+     *
+     * @param cachedBlocks how many decoded blocks are kept in memory
+     */
+    public SeekableLzmaChannel(final SeekableByteChannel source, final int cachedBlocks)
+            throws IOException
+    {
+        if (cachedBlocks <= 0)
+        {
+            throw new IllegalArgumentException("Invalid cache size: " + cachedBlocks);
+        }
+        this.source = source;
+        this.start = source.position();
+        this.cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest)
+            {
+                return size() > cachedBlocks;
+            }
+        };
+
+        long length = source.size() - start;
+        if (length < TRAILER_SIZE)
+        {
+            throw new IOException("Not a seekable LZMA container: too short");
+        }
+        ByteBuffer trailer = readFully(length - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        int blockCount = trailer.getInt();
+        if (trailer.getInt() != MAGIC)
+        {
+            throw new IOException("Not a seekable LZMA container: bad magic");
+        }
+        if (blockCount < 0 || indexOffset < 0 || indexOffset + 16L * (blockCount + 1) != length - TRAILER_SIZE)
+        {
+            throw new IOException("Corrupted seekable LZMA container index");
+        }
+        ByteBuffer index = readFully(indexOffset, 16 * (blockCount + 1));
+        compressedOffsets = new long[blockCount + 1];
+        uncompressedOffsets = new long[blockCount + 1];
+        for (int i = 0; i <= blockCount; i++)
+        {
+            compressedOffsets[i] = index.getLong();
+            uncompressedOffsets[i] = index.getLong();
+            if (i > 0 && (compressedOffsets[i] < compressedOffsets[i - 1]
+                    || uncompressedOffsets[i] < uncompressedOffsets[i - 1]
+                    || uncompressedOffsets[i] - uncompressedOffsets[i - 1] > Integer.MAX_VALUE - 8))
+            {
+                throw new IOException("Corrupted seekable LZMA container index");
+            }
+        }
+    }
+
+    public synchronized int read(ByteBuffer dst)
+            throws IOException
+    {
+        ensureOpen();
+        if (!dst.hasRemaining())
+        {
+            return 0;
+        }
+        if (position >= size())
+        {
+            return -1;
+        }
+        int count = 0;
+        while (dst.hasRemaining() && position < size())
+        {
+            int i = blockAt(position);
+            byte[] block = block(i);
+            int offset = (int) (position - uncompressedOffsets[i]);
+            int n = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, n);
+            position += n;
+            count += n;
+        }
+        return count;
+    }
+
+    public int write(ByteBuffer src)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized long position()
+            throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    public synchronized SeekableByteChannel position(long newPosition)
+            throws IOException
+    {
+        if (newPosition < 0)
+        {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        ensureOpen();
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return the uncompressed size
+     */
+    public synchronized long size()
+            throws IOException
+    {
+        ensureOpen();
+        return uncompressedOffsets[uncompressedOffsets.length - 1];
+    }
+
+    public SeekableByteChannel truncate(long size)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * @return the number of blocks in the container
+     */
+    public int getBlockCount()
+    {
+        return compressedOffsets.length - 1;
+    }
+
+    public synchronized boolean isOpen()
+    {
+        return !closed;
+    }
+
+    /**
+     * Closes the source channel and drops the cached blocks.
+     */
+    public synchronized void close()
+            throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        cache.clear();
+        source.close();
+    }
+
+    // the last block whose uncompressed offset is not after pos
+    private int blockAt(long pos)
+    {
+        int low = 0;
+        int high = uncompressedOffsets.length - 2;
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+            if (uncompressedOffsets[mid] <= pos)
+            {
+                low = mid;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private byte[] block(int i)
+            throws IOException
+    {
+        byte[] block = cache.get(i);
+        if (block == null)
+        {
+            long compressedSize = compressedOffsets[i + 1] - compressedOffsets[i];
+            if (compressedSize < Lzma.HEADER_SIZE || compressedSize > Integer.MAX_VALUE)
+            {
+                throw new IOException("Corrupted seekable LZMA container index");
+            }
+            ByteBuffer src = readFully(compressedOffsets[i], (int) compressedSize);
+            long size = Lzma.readHeader(src, decoder);
+            if (size != uncompressedOffsets[i + 1] - uncompressedOffsets[i])
+            {
+                throw new IOException("Block " + i + " does not match the container index");
+            }
+            block = new byte[(int) size];
+            Lzma.decode(src, ByteBuffer.wrap(block), decoder, size);
+            cache.put(i, block);
+        }
+        return block;
+    }
+
+    private ByteBuffer readFully(long offset, int len)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        source.position(start + offset);
+        while (buffer.hasRemaining())
+        {
+            if (source.read(buffer) < 0)
+            {
+                throw new EOFException("Truncated seekable LZMA container");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void ensureOpen()
+            throws IOException
+    {
+        if (closed)
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import lzma.sdk.lzma.Encoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An output stream writing the seekable container read by {@link SeekableLzmaChannel}: the data is cut into
+ * blocks of a fixed uncompressed size, each compressed as an independent .lzma stream, and an index of the
+ * block offsets is written on {@link #close()}. The container is written sequentially, so any output
+ * stream can be used.
+ * <p>
+ * Compression happens on the calling thread, one block at a time.
+ *
+ * @author Julien Ponge
+ */
+public class SeekableLzmaOutputStream
+        extends OutputStream
+{
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private final OutputStream out;
+
+    private final Encoder encoder;
+
+    private final byte[] block;
+
+    private final byte[] compressed;
+
+    private int count;
+
+    private long compressedOffset;
+
+    private long uncompressedOffset;
+
+    private ByteBuffer index = ByteBuffer.allocate(16 * 64).order(ByteOrder.LITTLE_ENDIAN);
+
+    private boolean closed;
+
+    public SeekableLzmaOutputStream(final OutputStream out)
+    {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    public SeekableLzmaOutputStream(final OutputStream out, final int blockSize)
+    {
+        this(out, newEncoder(blockSize), blockSize);
+    }
+
+    /**
+     * @param encoder   a configured encoder, reused for every block; it is switched out of end marker mode
+     *                  since each block header holds its size
+     * @param blockSize the uncompressed size of each block, the last one excepted; a random read decodes
+     *                  one block of this size
+     */
+    public SeekableLzmaOutputStream(final OutputStream out, final Encoder encoder, final int blockSize)
+    {
+        if (blockSize <= 0)
+        {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        this.out = out;
+        this.encoder = encoder;
+        this.block = new byte[blockSize];
+        this.compressed = new byte[Lzma.compressBound(blockSize)];
+    }
+
+    private static Encoder newEncoder(int blockSize)
+    {
+        Encoder encoder = new Encoder();
+        encoder.setDictionarySize(Lzma.dictionarySizeFor(blockSize));
+        return encoder;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        ensureOpen();
+        block[count++] = (byte) b;
+        if (count == block.length)
+        {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0)
+        {
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == block.length)
+            {
+                writeBlock();
+            }
+        }
+    }
+
+    @Override
+    public void flush()
+            throws IOException
+    {
+        out.flush();
+    }
+
+    /**
+     * Writes the last block, the index and the trailer, then closes the underlying stream.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            if (count > 0)
+            {
+                writeBlock();
+            }
+            long indexOffset = compressedOffset;
+            int blockCount = index.position() / 16;
+            addIndexEntry();
+            ByteBuffer trailer = ByteBuffer.allocate(SeekableLzmaChannel.TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putLong(indexOffset).putInt(blockCount).putInt(SeekableLzmaChannel.MAGIC);
+            out.write(index.array(), 0, index.position());
+            out.write(trailer.array());
+        }
+        finally
+        {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void writeBlock()
+            throws IOException
+    {
+        addIndexEntry();
+        int n = Lzma.compress(ByteBuffer.wrap(block, 0, count), ByteBuffer.wrap(compressed), encoder);
+        out.write(compressed, 0, n);
+        compressedOffset += n;
+        uncompressedOffset += count;
+        count = 0;
+    }
+
+    private void addIndexEntry()
+    {
+        if (index.remaining() < 16)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(index.capacity() << 1).order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            index = larger.put(index);
+        }
+        index.putLong(compressedOffset).putLong(uncompressedOffset);
+    }
+
+    private void ensureOpen()
+            throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,607 @@
+/*
+ *  Copyright (c) 2011 Tamas Cservenak. All rights reserved.
+ *
+ *  <tamas@cservenak.com>
+ *  http://www.cservenak.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cservenak.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer / single-consumer byte pipe that hands over whole chunks instead of single bytes.
+ * <p>
+ * The producer fills a chunk through {@link #getSink()} and publishes it once full or flushed; the consumer
+ * reads chunks through {@link #getSource()} and gives drained chunks back for reuse. Both sides only touch
+ * volatile indexes of two ring buffers (filled and recycled chunks), and wait for each other by spinning
+ * a little before parking.
+ */
+public class ChunkPipe
+{
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_CHUNK_COUNT = 4;
+
+    private static final int SPINS = 128;
+
+    private final int chunkSize;
+
+    // filled chunks, from the producer to the consumer
+    private final Ring filled;
+
+    // drained chunks, from the consumer back to the producer
+    private final Ring recycled;
+
+    private int allocated;
+
+    private final int maxChunks;
+
+    private volatile boolean sinkClosed;
+
+    private volatile boolean sourceClosed;
+
+    private volatile boolean aborted;
+
+    // flush barriers the consumer is done with, see flushBarrier()
+    private volatile long acknowledged;
+
+    private volatile Thread waitingProducer;
+
+    private volatile Thread waitingConsumer;
+
+    private final Sink sink = new Sink();
+
+    private final Source source = new Source();
+
+    public ChunkPipe()
+    {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_COUNT);
+    }
+
+    /**
+     * @param chunkSize  the size of each chunk
+     * @param chunkCount how many filled chunks may wait for the consumer before the producer blocks
+     */
+    public ChunkPipe(int chunkSize, int chunkCount)
+    {
+        if (chunkSize <= 0 || chunkCount <= 0)
+        {
+            throw new IllegalArgumentException("Chunk size and count must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.maxChunks = chunkCount + 2;
+        this.filled = new Ring(chunkCount);
+        this.recycled = new Ring(maxChunks);
+    }
+
+    /**
+     * @return the producer side, to be used by a single thread
+     */
+    public OutputStream getSink()
+    {
+        return sink;
+    }
+
+    /**
+     * @return the consumer side, to be used by a single thread
+     */
+    public InputStream getSource()
+    {
+        return source;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Publishes what has been written so far followed by a flush barrier, then waits for the consumer to be done
+     * with it: the consumer sees an end of data at the barrier, and the barrier counts as handled once it reads
+     * again. A coder can thus complete its output for everything written before the barrier, then carry on.
+     * Nothing happens if nothing has been written since the previous barrier. To be called by the producer.
+     */
+    public void flushBarrier()
+            throws IOException
+    {
+        sink.barrier();
+    }
+
+    /**
+     * Breaks the pipe: any pending or later operation on either side fails with an {@link IOException}.
+     * Unlike closing the sink, this never lets the consumer mistake the cut for a regular end of data.
+     */
+    public void abort()
+    {
+        aborted = true;
+        wake(waitingProducer);
+        wake(waitingConsumer);
+    }
+
+    // ==
+
+    static final class Chunk
+    {
+        final byte[] data;
+
+        int length;
+
+        boolean barrier;
+
+        Chunk(int size)
+        {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * A bounded ring buffer with one writer and one reader thread.
+     */
+    static final class Ring
+    {
+        private final Chunk[] slots;
+
+        private final int mask;
+
+        private volatile long head;
+
+        private volatile long tail;
+
+        Ring(int capacity)
+        {
+            int size = Integer.highestOneBit(capacity - 1) << 1;
+            slots = new Chunk[Math.max(size, 1)];
+            mask = slots.length - 1;
+        }
+
+        boolean offer(Chunk chunk)
+        {
+            long t = tail;
+            if (t - head == slots.length)
+            {
+                return false;
+            }
+            slots[(int) t & mask] = chunk;
+            tail = t + 1;
+            return true;
+        }
+
+        Chunk poll()
+        {
+            long h = head;
+            if (h == tail)
+            {
+                return null;
+            }
+            int index = (int) h & mask;
+            Chunk chunk = slots[index];
+            slots[index] = null;
+            head = h + 1;
+            return chunk;
+        }
+
+        boolean isEmpty()
+        {
+            return head == tail;
+        }
+    }
+
+    private void await()
+            throws InterruptedIOException
+    {
+        if (Thread.interrupted())
+        {
+            throw new InterruptedIOException();
+        }
+        LockSupport.park(this);
+    }
+
+    private static void wake(Thread thread)
+    {
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    final class Sink
+            extends OutputStream
+    {
+        private Chunk current;
+
+        private boolean written;
+
+        private long barriers;
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            if (current == null || current.length == chunkSize)
+            {
+                next();
+            }
+            current.data[current.length++] = (byte) b;
+            written = true;
+        }
+
+        @Override
+        public void write(byte b[], int off, int len)
+                throws IOException
+        {
+            if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            while (len > 0)
+            {
+                if (current == null || current.length == chunkSize)
+                {
+                    next();
+                }
+                int n = Math.min(len, chunkSize - current.length);
+                System.arraycopy(b, off, current.data, current.length, n);
+                current.length += n;
+                off += n;
+                len -= n;
+                written = true;
+            }
+        }
+
+        /**
+         * Publishes the partially filled chunk, if any, to the consumer.
+         */
+        @Override
+        public void flush()
+                throws IOException
+        {
+            if (current != null && current.length > 0)
+            {
+                publish();
+            }
+        }
+
+        void barrier()
+                throws IOException
+        {
+            if (!written)
+            {
+                return;
+            }
+            if (current == null || current.length > 0)
+            {
+                next();
+            }
+            current.barrier = true;
+            publish();
+            written = false;
+            long target = ++barriers;
+            int spins = 0;
+            while (acknowledged < target)
+            {
+                ensureOpen();
+                if (spins < SPINS)
+                {
+                    spins++;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                waitingProducer = Thread.currentThread();
+                try
+                {
+                    if (acknowledged < target)
+                    {
+                        ensureOpen();
+                        await();
+                    }
+                }
+                finally
+                {
+                    waitingProducer = null;
+                }
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (sinkClosed)
+            {
+                return;
+            }
+            try
+            {
+                if (!sourceClosed)
+                {
+                    flush();
+                }
+            }
+            finally
+            {
+                sinkClosed = true;
+                wake(waitingConsumer);
+            }
+        }
+
+        private void next()
+                throws IOException
+        {
+            if (current != null)
+            {
+                publish();
+            }
+            current = recycled.poll();
+            if (current == null)
+            {
+                if (allocated < maxChunks)
+                {
+                    allocated++;
+                    current = new Chunk(chunkSize);
+                }
+                else
+                {
+                    current = awaitRecycled();
+                }
+            }
+            current.length = 0;
+            current.barrier = false;
+        }
+
+        private void publish()
+                throws IOException
+        {
+            ensureOpen();
+            int spins = 0;
+            while (!filled.offer(current))
+            {
+                if (spins < SPINS)
+                {
+                    spins++;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                waitingProducer = Thread.currentThread();
+                try
+                {
+                    if (!filled.offer(current))
+                    {
+                        ensureOpen();
+                        await();
+                        continue;
+                    }
+                }
+                finally
+                {
+                    waitingProducer = null;
+                }
+                break;
+            }
+            current = null;
+            wake(waitingConsumer);
+        }
+
+        private Chunk awaitRecycled()
+                throws IOException
+        {
+            int spins = 0;
+            while (true)
+            {
+                Chunk chunk = recycled.poll();
+                if (chunk != null)
+                {
+                    return chunk;
+                }
+                ensureOpen();
+                if (spins < SPINS)
+                {
+                    spins++;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                waitingProducer = Thread.currentThread();
+                try
+                {
+                    chunk = recycled.poll();
+                    if (chunk != null)
+                    {
+                        return chunk;
+                    }
+                    ensureOpen();
+                    await();
+                }
+                finally
+                {
+                    waitingProducer = null;
+                }
+            }
+        }
+
+        private void ensureOpen()
+                throws IOException
+        {
+            if (aborted)
+            {
+                throw new IOException("Pipe aborted");
+            }
+            if (sourceClosed)
+            {
+                throw new IOException("Pipe closed");
+            }
+            if (sinkClosed)
+            {
+                throw new IOException("Write end closed");
+            }
+        }
+    }
+
+    final class Source
+            extends InputStream
+    {
+        private Chunk current;
+
+        private int position;
+
+        private boolean barrierReached;
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            if (!ensureData())
+            {
+                return -1;
+            }
+            return current.data[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte b[], int off, int len)
+                throws IOException
+        {
+            if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!ensureData())
+            {
+                return -1;
+            }
+            int count = 0;
+            do
+            {
+                int n = Math.min(len - count, current.length - position);
+                System.arraycopy(current.data, position, b, off + count, n);
+                position += n;
+                count += n;
+            }
+            while (count < len && (position < current.length || (nextAvailable() && !current.barrier)));
+            return count;
+        }
+
+        @Override
+        public int available()
+                throws IOException
+        {
+            ensureOpen();
+            return (current == null) ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            sourceClosed = true;
+            wake(waitingProducer);
+        }
+
+        // false at the end of the data, and once at each flush barrier
+        private boolean ensureData()
+                throws IOException
+        {
+            ensureOpen();
+            if (barrierReached)
+            {
+                // reading again after a barrier: everything before it has been handled
+                barrierReached = false;
+                acknowledged++;
+                wake(waitingProducer);
+            }
+            if (current != null && current.barrier)
+            {
+                return reachBarrier();
+            }
+            if (current != null && position < current.length)
+            {
+                return true;
+            }
+            int spins = 0;
+            while (!nextAvailable())
+            {
+                ensureOpen();
+                if (sinkClosed && filled.isEmpty())
+                {
+                    return false;
+                }
+                if (spins < SPINS)
+                {
+                    spins++;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                waitingConsumer = Thread.currentThread();
+                try
+                {
+                    if (filled.isEmpty() && !sinkClosed && !aborted)
+                    {
+                        await();
+                    }
+                }
+                finally
+                {
+                    waitingConsumer = null;
+                }
+            }
+            return current.barrier ? reachBarrier() : true;
+        }
+
+        private boolean reachBarrier()
+        {
+            current.barrier = false;
+            barrierReached = true;
+            return false;
+        }
+
+        // swaps the drained chunk for the next filled one, without waiting
+        private boolean nextAvailable()
+        {
+            Chunk next = filled.poll();
+            if (next == null)
+            {
+                return false;
+            }
+            if (current != null)
+            {
+                recycled.offer(current);
+            }
+            current = next;
+            position = 0;
+            wake(waitingProducer);
+            return true;
+        }
+
+        private void ensureOpen()
+                throws IOException
+        {
+            if (aborted)
+            {
+                throw new IOException("Pipe aborted");
+            }
+            if (sourceClosed)
+            {
+                throw new IOException("Pipe closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) 2011 Tamas Cservenak. All rights reserved.
+ *
+ *  <tamas@cservenak.com>
+ *  http://www.cservenak.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cservenak.streams;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the executors running {@link CoderTask}s.
+ * <p>
+ * Coder tasks block on their pipe for as long as their stream is in use, so a pool shared by many streams
+ * must have at least as many threads as there are open streams; the thread-per-task executors returned here
+ * never run out, and with virtual threads they stay cheap even for tens of thousands of streams.
+ */
+public final class CoderExecutors
+{
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final Executor DEFAULT_EXECUTOR = threadPerTask(new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            return new Thread(r, "lzma-coder-" + THREAD_COUNT.incrementAndGet());
+        }
+    });
+
+    private CoderExecutors()
+    {
+    }
+
+    /**
+     * @return the executor used when none is given: one new platform thread per task, as with {@link CoderThread}
+     */
+    public static Executor defaultExecutor()
+    {
+        return DEFAULT_EXECUTOR;
+    }
+
+    /**
+     * @return an executor starting a new thread from <code>factory</code> for each task
+     */
+    public static Executor threadPerTask(final ThreadFactory factory)
+    {
+        if (factory == null)
+        {
+            throw new NullPointerException("factory");
+        }
+        return new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                factory.newThread(command).start();
+            }
+        };
+    }
+
+    /**
+     * @return an executor starting a new virtual thread for each task
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    public static Executor virtualThreadPerTask()
+    {
+        return threadPerTask(virtualThreadFactory());
+    }
+
+    /**
+     * Looked up reflectively so that the library still runs on JVMs that predate virtual threads.
+     *
+     * @return a factory of virtual threads named <code>lzma-coder-virtual-N</code>
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    public static ThreadFactory virtualThreadFactory()
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "lzma-coder-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (InvocationTargetException e)
+        {
+            // preview releases throw when preview features are disabled
+            throw new UnsupportedOperationException("Virtual threads are not enabled on this JVM", e.getCause());
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new UnsupportedOperationException("Virtual threads are not available on this JVM", e);
+        }
+    }
+
+    /**
+     * @return true if {@link #virtualThreadFactory()} can be used on the running JVM
+     */
+    public static boolean isVirtualThreadSupported()
+    {
+        try
+        {
+            virtualThreadFactory();
+            return true;
+        }
+        catch (UnsupportedOperationException e)
+        {
+            return false;
+        }
+    }
+}
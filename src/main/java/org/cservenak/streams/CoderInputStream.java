@@ -21,22 +21,54 @@ package org.cservenak.streams;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.Executor;
 
 public class CoderInputStream
         extends InputStream
 {
-    private final CoderThread ct;
+    private final CoderTask ct;
+
+    private final Cleaner.Cleanable cleanable;
 
     private volatile InputStream in;
 
     protected CoderInputStream(final InputStream in, final Coder coder)
             throws IOException
     {
-        this.ct = new CoderThread(coder, in);
+        this(in, coder, ChunkPipe.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks exchanged with the coder thread
+     */
+    protected CoderInputStream(final InputStream in, final Coder coder, final int chunkSize)
+            throws IOException
+    {
+        this(in, coder, chunkSize, null);
+    }
+
+    /**
+     * @param executor runs the coder, or <code>null</code> for {@link CoderExecutors#defaultExecutor()}
+     */
+    protected CoderInputStream(final InputStream in, final Coder coder, final Executor executor)
+            throws IOException
+    {
+        this(in, coder, ChunkPipe.DEFAULT_CHUNK_SIZE, executor);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks exchanged with the coder
+     * @param executor  runs the coder, or <code>null</code> for {@link CoderExecutors#defaultExecutor()}
+     */
+    protected CoderInputStream(final InputStream in, final Coder coder, final int chunkSize, final Executor executor)
+            throws IOException
+    {
+        this.ct = new CoderTask(coder, in, chunkSize);
 
         this.in = ct.getInputStreamSink();
 
-        this.ct.start();
+        this.cleanable = ct.start(this, executor != null ? executor : CoderExecutors.defaultExecutor());
     }
 
     @Override
@@ -88,6 +120,10 @@ public class CoderInputStream
         {
             throw new IOException(e);
         }
+        finally
+        {
+            cleanable.clean();
+        }
 
         ct.checkForException();
     }
@@ -21,22 +21,54 @@ package org.cservenak.streams;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.Executor;
 
 public class CoderOutputStream
         extends OutputStream
 {
-    private final CoderThread ct;
+    private final CoderTask ct;
+
+    private final Cleaner.Cleanable cleanable;
 
     private OutputStream out;
 
     protected CoderOutputStream(final OutputStream out, final Coder coder)
             throws IOException
     {
-        this.ct = new CoderThread(coder, out);
+        this(out, coder, ChunkPipe.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks exchanged with the coder thread
+     */
+    protected CoderOutputStream(final OutputStream out, final Coder coder, final int chunkSize)
+            throws IOException
+    {
+        this(out, coder, chunkSize, null);
+    }
+
+    /**
+     * @param executor runs the coder, or <code>null</code> for {@link CoderExecutors#defaultExecutor()}
+     */
+    protected CoderOutputStream(final OutputStream out, final Coder coder, final Executor executor)
+            throws IOException
+    {
+        this(out, coder, ChunkPipe.DEFAULT_CHUNK_SIZE, executor);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks exchanged with the coder
+     * @param executor  runs the coder, or <code>null</code> for {@link CoderExecutors#defaultExecutor()}
+     */
+    protected CoderOutputStream(final OutputStream out, final Coder coder, final int chunkSize, final Executor executor)
+            throws IOException
+    {
+        this.ct = new CoderTask(coder, out, chunkSize);
 
         this.out = ct.getOutputStreamSink();
 
-        this.ct.start();
+        this.cleanable = ct.start(this, executor != null ? executor : CoderExecutors.defaultExecutor());
     }
 
     public void write(int b)
@@ -67,6 +99,25 @@ public class CoderOutputStream
         out.flush();
     }
 
+    /**
+     * Makes the coder handle everything written so far, unlike {@link #flush()} which only hands it over: the
+     * coder sees an end of input, then more input once it is done. This returns after the coder is done.
+     */
+    protected void flushCoder()
+            throws IOException
+    {
+        try
+        {
+            ct.flushBarrier();
+        }
+        catch (IOException e)
+        {
+            // the coder failed and closed the pipe: its own error says more
+            ct.checkForException();
+            throw e;
+        }
+    }
+
     public void close()
             throws IOException
     {
@@ -88,6 +139,10 @@ public class CoderOutputStream
         {
             throw new IOException(e);
         }
+        finally
+        {
+            cleanable.clean();
+        }
         ct.checkForException();
     }
 }
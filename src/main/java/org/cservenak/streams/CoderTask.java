@@ -0,0 +1,251 @@
+/*
+ *  Copyright (c) 2011 Tamas Cservenak. All rights reserved.
+ *
+ *  <tamas@cservenak.com>
+ *  http://www.cservenak.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cservenak.streams;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The work of running a {@link Coder} on one side of a {@link ChunkPipe}, to be run by any thread or
+ * {@link java.util.concurrent.Executor}. The stream owning the task waits for it with {@link #join()},
+ * or releases it with {@link #abort()} when it is abandoned.
+ */
+public class CoderTask
+        implements Runnable
+{
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final ChunkPipe pipe;
+
+    private final Runnable workhorse;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Throwable throwable;
+
+    /**
+     * Runs the coder over <code>in</code>, its output being readable from {@link #getInputStreamSink()}.
+     *
+     * @param chunkSize the size of the chunks handed over to the reader
+     */
+    public CoderTask(final Coder coder, final InputStream in, final int chunkSize)
+    {
+        this.pipe = new ChunkPipe(chunkSize, ChunkPipe.DEFAULT_CHUNK_COUNT);
+        final OutputStream outSink = pipe.getSink();
+        this.workhorse = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    coder.code(in, outSink);
+
+                    flush(outSink);
+                }
+                catch (Throwable e)
+                {
+                    throwable = e;
+                }
+                finally
+                {
+                    close(outSink);
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs the coder over what is written to {@link #getOutputStreamSink()}, its output going to <code>out</code>.
+     *
+     * @param chunkSize the size of the chunks handed over to the coder
+     */
+    public CoderTask(final Coder coder, final OutputStream out, final int chunkSize)
+    {
+        this.pipe = new ChunkPipe(chunkSize, ChunkPipe.DEFAULT_CHUNK_COUNT);
+        final InputStream inSink = pipe.getSource();
+        this.workhorse = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    coder.code(inSink, out);
+
+                    flush(out);
+                }
+                catch (Throwable e)
+                {
+                    throwable = e;
+                }
+                finally
+                {
+                    close(inSink);
+                }
+            }
+        };
+    }
+
+    public void run()
+    {
+        try
+        {
+            workhorse.run();
+        }
+        finally
+        {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Submits the task to <code>executor</code>, aborting it once <code>owner</code> becomes unreachable so
+     * that a stream dropped without being closed does not keep its worker blocked forever.
+     *
+     * @return the cleanable to invoke once the owner is done with the task
+     */
+    Cleaner.Cleanable start(final Object owner, final Executor executor)
+            throws IOException
+    {
+        final Cleaner.Cleanable cleanable = CLEANER.register(owner, new Runnable()
+        {
+            public void run()
+            {
+                abort();
+            }
+        });
+        try
+        {
+            executor.execute(this);
+        }
+        catch (RejectedExecutionException e)
+        {
+            cleanable.clean();
+            throw new IOException("Coder task rejected by executor", e);
+        }
+        return cleanable;
+    }
+
+    /**
+     * Waits for the task to complete.
+     */
+    public void join()
+            throws InterruptedException
+    {
+        done.await();
+    }
+
+    /**
+     * Has the coder handle everything written to {@link #getOutputStreamSink()} so far, see
+     * {@link ChunkPipe#flushBarrier()}.
+     */
+    void flushBarrier()
+            throws IOException
+    {
+        pipe.flushBarrier();
+    }
+
+    /**
+     * Breaks the pipe so that the coder fails on its next read or write and the task completes.
+     */
+    public void abort()
+    {
+        pipe.abort();
+    }
+
+    // ==
+
+    public Throwable getThrowable()
+    {
+        return throwable;
+    }
+
+    public void checkForException()
+            throws IOException
+    {
+        if (null != throwable)
+        {
+            if (throwable instanceof IOException)
+            {
+                throw (IOException) throwable;
+            }
+            else
+            {
+                throw new IOException(throwable);
+            }
+        }
+    }
+
+    public InputStream getInputStreamSink()
+    {
+        return pipe.getSource();
+    }
+
+    public OutputStream getOutputStreamSink()
+    {
+        return pipe.getSink();
+    }
+
+    // ==
+
+    protected boolean flush(Flushable flushable)
+    {
+        if (flushable != null)
+        {
+            try
+            {
+                flushable.flush();
+
+                return true;
+            }
+            catch (IOException e)
+            {
+                // mute
+            }
+        }
+
+        return false;
+    }
+
+    protected boolean close(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+
+                return true;
+            }
+            catch (IOException e)
+            {
+                // mute
+            }
+        }
+
+        return false;
+    }
+}
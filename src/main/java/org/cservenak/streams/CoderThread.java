@@ -19,148 +19,67 @@
 
 package org.cservenak.streams;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
+/**
+ * Runs a {@link CoderTask} on a dedicated platform thread.
+ */
 public class CoderThread
         extends Thread
 {
-    private final PipedInputStream inSink;
-
-    private final PipedOutputStream outSink;
-
-    private final Runnable workhorse;
-
-    private Throwable throwable;
+    private final CoderTask task;
 
     public CoderThread(final Coder coder, final InputStream in)
             throws IOException
     {
-        this.inSink = new PipedInputStream();
-        this.outSink = new PipedOutputStream(inSink);
-        this.workhorse = new Runnable()
-        {
-            public void run()
-            {
-                try
-                {
-                    coder.code(in, outSink);
+        this(coder, in, ChunkPipe.DEFAULT_CHUNK_SIZE);
+    }
 
-                    flush(outSink);
-                }
-                catch (Throwable e)
-                {
-                    throwable = e;
-                }
-                finally
-                {
-                    close(outSink);
-                }
-            }
-        };
+    public CoderThread(final Coder coder, final InputStream in, final int chunkSize)
+            throws IOException
+    {
+        this.task = new CoderTask(coder, in, chunkSize);
     }
 
     public CoderThread(final Coder coder, final OutputStream out)
             throws IOException
     {
-        this.outSink = new PipedOutputStream();
-        this.inSink = new PipedInputStream(outSink);
-        this.workhorse = new Runnable()
-        {
-            public void run()
-            {
-                try
-                {
-                    coder.code(inSink, out);
+        this(coder, out, ChunkPipe.DEFAULT_CHUNK_SIZE);
+    }
 
-                    flush(out);
-                }
-                catch (Throwable e)
-                {
-                    throwable = e;
-                }
-                finally
-                {
-                    close(inSink);
-                }
-            }
-        };
+    public CoderThread(final Coder coder, final OutputStream out, final int chunkSize)
+            throws IOException
+    {
+        this.task = new CoderTask(coder, out, chunkSize);
     }
 
     public void run()
     {
-        workhorse.run();
+        task.run();
     }
 
     // ==
 
     public Throwable getThrowable()
     {
-        return throwable;
+        return task.getThrowable();
     }
 
     public void checkForException()
             throws IOException
     {
-        if (null != throwable)
-        {
-            if (throwable instanceof IOException)
-            {
-                throw (IOException) throwable;
-            }
-            else
-            {
-                throw new IOException(throwable);
-            }
-        }
-    }
-
-    public PipedInputStream getInputStreamSink()
-    {
-        return inSink;
+        task.checkForException();
     }
 
-    public PipedOutputStream getOutputStreamSink()
+    public InputStream getInputStreamSink()
     {
-        return outSink;
+        return task.getInputStreamSink();
     }
 
-    // ==
-
-    protected boolean flush(Flushable flushable)
+    public OutputStream getOutputStreamSink()
     {
-        if (flushable != null)
-        {
-            try
-            {
-                flushable.flush();
-
-                return true;
-            }
-            catch (IOException e)
-            {
-                // mute
-            }
-        }
-
-        return false;
-    }
-
-    protected boolean close(Closeable closeable)
-    {
-        if (closeable != null)
-        {
-            try
-            {
-                closeable.close();
-
-                return true;
-            }
-            catch (IOException e)
-            {
-                // mute
-            }
-        }
-
-        return false;
+        return task.getOutputStreamSink();
     }
 }
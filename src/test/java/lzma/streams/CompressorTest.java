@@ -0,0 +1,119 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import junit.framework.TestCase;
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class CompressorTest
+        extends TestCase
+{
+    public void testCompressorRoundtrip()
+            throws IOException
+    {
+        final File srcDir = new File("target/test-classes");
+
+        performCompressorRoundtrip(FileUtils.readFileToByteArray(new File(srcDir, "plaintext.txt")));
+        performCompressorRoundtrip(FileUtils.readFileToByteArray(new File(srcDir, "doc.pdf")));
+        performCompressorRoundtrip(new byte[0]);
+    }
+
+    public void testDecompressorRoundtrip()
+            throws IOException
+    {
+        final File srcDir = new File("target/test-classes");
+
+        performDecompressorRoundtrip(FileUtils.readFileToByteArray(new File(srcDir, "plaintext.txt")));
+        performDecompressorRoundtrip(FileUtils.readFileToByteArray(new File(srcDir, "ajar.jar")));
+    }
+
+    private void performCompressorRoundtrip(final byte[] source)
+            throws IOException
+    {
+        final Encoder encoder = new Encoder();
+        encoder.setDictionarySize(1 << 20);
+        final LzmaCompressor compressor = new LzmaCompressor(encoder);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[777];
+
+        int offset = 0;
+        int chunk = 1;
+        while (offset < source.length)
+        {
+            int len = Math.min(chunk, source.length - offset);
+            compressor.setInput(source, offset, len);
+            offset += len;
+            chunk = chunk * 3 + 1;
+            while (!compressor.needsInput())
+            {
+                compressed.write(buffer, 0, compressor.encode(buffer));
+            }
+        }
+        compressor.finish();
+        while (!compressor.finished())
+        {
+            compressed.write(buffer, 0, compressor.encode(buffer));
+        }
+
+        final byte[] decompressed = IOUtils.toByteArray(
+                new LzmaInputStream(new ByteArrayInputStream(compressed.toByteArray()), new Decoder()));
+        assertTrue(Arrays.equals(source, decompressed));
+    }
+
+    private void performDecompressorRoundtrip(final byte[] source)
+            throws IOException
+    {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final OutputStream out = new LzmaOutputStream.Builder(compressed).build();
+        out.write(source);
+        out.close();
+        final byte[] data = compressed.toByteArray();
+
+        final LzmaDecompressor decompressor = new LzmaDecompressor(new Decoder());
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[501];
+
+        int offset = 0;
+        while (offset < data.length)
+        {
+            int len = Math.min(100, data.length - offset);
+            decompressor.setInput(data, offset, len);
+            offset += len;
+            while (!decompressor.needsInput() && !decompressor.finished())
+            {
+                decompressed.write(buffer, 0, decompressor.decode(buffer));
+            }
+        }
+        decompressor.finish();
+        while (!decompressor.finished())
+        {
+            decompressed.write(buffer, 0, decompressor.decode(buffer));
+        }
+
+        assertTrue(Arrays.equals(source, decompressed.toByteArray()));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+import junit.framework.TestCase;
+import lzma.sdk.lzma.Decoder;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.io.FileUtils.contentEquals;
+import static org.apache.commons.io.IOUtils.toByteArray;
+
+public class LzmaAsyncTest
+        extends TestCase
+{
+    public void testRoundtrip()
+            throws Exception
+    {
+        final File srcDir = new File("target/test-classes");
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            final LzmaAsync.Options options =
+                    new LzmaAsync.Options().useExecutor(executor).useBufferSize(4096).useMediumDictionarySize();
+            final String[] names = {"plaintext.txt", "ajar.jar", "doc.pdf"};
+            final CompletableFuture<?>[] jobs = new CompletableFuture<?>[names.length];
+            for (int i = 0; i < names.length; i++)
+            {
+                final File source = new File(srcDir, names[i]);
+                final File compressed = new File(srcDir, names[i] + ".async.lzma");
+                final File decompressed = new File(srcDir, names[i] + ".async.unlzma");
+                jobs[i] = LzmaAsync.compress(source.toPath(), compressed.toPath(), options)
+                        .thenCompose(stats -> {
+                            assertEquals(source.length(), stats.getBytesRead());
+                            assertEquals(compressed.length(), stats.getBytesWritten());
+                            return LzmaAsync.decompress(compressed.toPath(), decompressed.toPath(), options);
+                        });
+            }
+            CompletableFuture.allOf(jobs).get(60, TimeUnit.SECONDS);
+
+            for (final String name : names)
+            {
+                assertTrue("Source and uncompressed content does not equals!",
+                        contentEquals(new File(srcDir, name), new File(srcDir, name + ".async.unlzma")));
+            }
+            assertEquals(new File(srcDir, "doc.pdf").length(),
+                    Lzma.decompress(FileUtils.readFileToByteArray(new File(srcDir, "doc.pdf.async.lzma"))).length);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testStreamReadsPatchedSize()
+            throws Exception
+    {
+        final File source = new File("target/test-classes", "plaintext.txt");
+        final File compressed = new File("target/test-classes", "plaintext.txt.async.stream.lzma");
+        final LzmaAsync.Stats stats = LzmaAsync.compress(source.toPath(), compressed.toPath(),
+                new LzmaAsync.Options().useBufferSize(4096).useMediumDictionarySize()).get(60, TimeUnit.SECONDS);
+        assertEquals(source.length(), stats.getBytesRead());
+
+        final LzmaInputStream in = new LzmaInputStream(new FileInputStream(compressed), new Decoder());
+        try
+        {
+            assertTrue(Arrays.equals(FileUtils.readFileToByteArray(source), toByteArray(in)));
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+import junit.framework.TestCase;
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class LzmaCoderPoolTest
+        extends TestCase
+{
+    public void testReuse()
+    {
+        final LzmaCoderPool pool = new LzmaCoderPool();
+        final Encoder encoder = pool.borrowEncoder(1 << 16, Encoder.EMatchFinderTypeBT4, 0x20, 3, 0, 2);
+        pool.returnEncoder(encoder);
+        assertSame(encoder, pool.borrowEncoder(1 << 16, Encoder.EMatchFinderTypeBT4, 0x20, 3, 0, 2));
+        assertNotSame(encoder, pool.borrowEncoder(1 << 17, Encoder.EMatchFinderTypeBT4, 0x20, 3, 0, 2));
+        try
+        {
+            pool.returnEncoder(new Encoder());
+            fail("Foreign encoders should be rejected");
+        }
+        catch (IllegalArgumentException expected)
+        {
+            // expected
+        }
+    }
+
+    public void testReturnedCodersForgetSettings()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final LzmaCoderPool pool = new LzmaCoderPool();
+
+        Encoder encoder = pool.borrowEncoder(1 << 16, Encoder.EMatchFinderTypeBT4, 0x20, 3, 0, 2);
+        encoder.setPresetDictionary(Arrays.copyOf(source, 4096));
+        encoder.setSolid(true);
+        pool.returnEncoder(encoder);
+        encoder = pool.borrowEncoder(1 << 16, Encoder.EMatchFinderTypeBT4, 0x20, 3, 0, 2);
+        final ByteBuffer compressed = ByteBuffer.allocate(Lzma.compressBound(source.length));
+        Lzma.compress(ByteBuffer.wrap(source), compressed, encoder);
+        final byte[] data = Arrays.copyOf(compressed.array(), compressed.position());
+        assertTrue(Arrays.equals(source, Lzma.decompress(data)));
+
+        final byte[] properties = Arrays.copyOf(data, Encoder.kPropSize);
+        Decoder decoder = pool.borrowDecoder(properties);
+        decoder.setPresetDictionary(Arrays.copyOf(source, 4096));
+        decoder.setSolid(true);
+        decoder.setMemoryLimit(1);
+        decoder.setDecoderProperties(new byte[]{0, 0, 0, 1, 0});
+        pool.returnDecoder(decoder);
+        decoder = pool.borrowDecoder(properties);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final InputStream in = new ByteArrayInputStream(data, Lzma.HEADER_SIZE, data.length - Lzma.HEADER_SIZE);
+        assertTrue(decoder.code(in, out, source.length));
+        assertTrue(Arrays.equals(source, out.toByteArray()));
+    }
+
+    public void testPooledStreams()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final LzmaCoderPool pool = new LzmaCoderPool();
+
+        byte[] previous = null;
+        for (int i = 0; i < 3; i++)
+        {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            final OutputStream out =
+                    new LzmaOutputStream.Builder(compressed).useMediumDictionarySize().usePool(pool).build();
+            out.write(source);
+            out.close();
+
+            // a reset encoder must produce exactly the same stream as a fresh one
+            if (previous != null)
+            {
+                assertTrue(Arrays.equals(previous, compressed.toByteArray()));
+            }
+            previous = compressed.toByteArray();
+
+            final InputStream in = new LzmaInputStream(new ByteArrayInputStream(previous), pool);
+            assertTrue(Arrays.equals(source, IOUtils.toByteArray(in)));
+            in.close();
+        }
+    }
+}
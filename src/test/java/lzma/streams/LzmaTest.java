@@ -0,0 +1,643 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+import junit.framework.TestCase;
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LzmaTest
+        extends TestCase
+{
+    public void testRoundtrip()
+            throws IOException
+    {
+        final File srcDir = new File("target/test-classes");
+
+        performRoundtrip(FileUtils.readFileToByteArray(new File(srcDir, "plaintext.txt")));
+        performRoundtrip("Hello, small world!".getBytes("UTF-8"));
+        performRoundtrip(new byte[0]);
+
+        final byte[] random = new byte[100000];
+        new Random(7).nextBytes(random);
+        performRoundtrip(random);
+
+        // long matches overlapping their own output, at various periods
+        final byte[] runs = new byte[200000];
+        for (int i = 0; i < runs.length; i++)
+        {
+            runs[i] = (byte) (i % (1 + (i >> 14)));
+        }
+        performRoundtrip(runs);
+    }
+
+    public void testDirectBuffers()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "ajar.jar"));
+        final ByteBuffer src = ByteBuffer.allocateDirect(source.length);
+        src.put(source).flip();
+        final ByteBuffer compressed = ByteBuffer.allocateDirect(Lzma.compressBound(source.length));
+        final int n = Lzma.compress(src, compressed);
+        assertEquals(n, compressed.position());
+        compressed.flip();
+
+        final ByteBuffer decompressed = ByteBuffer.allocateDirect(source.length);
+        assertEquals(source.length, Lzma.decompress(compressed, decompressed));
+        decompressed.flip();
+        final byte[] result = new byte[source.length];
+        decompressed.get(result);
+        assertTrue(Arrays.equals(source, result));
+    }
+
+    public void testSingleReadOfKnownSize()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "ajar.jar"));
+        final LzmaInputStream in = new LzmaInputStream(new ByteArrayInputStream(Lzma.compress(source)), new Decoder());
+        final byte[] buffer = new byte[source.length + 10];
+        assertEquals(source.length, in.read(buffer, 3, source.length + 7));
+        assertEquals(-1, in.read(buffer, 0, buffer.length));
+        in.close();
+        assertTrue(Arrays.equals(source, Arrays.copyOfRange(buffer, 3, 3 + source.length)));
+    }
+
+    public void testExactInputConsumption()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final byte[] trailer = "trailing data".getBytes("UTF-8");
+        final ByteArrayOutputStream marked = new ByteArrayOutputStream();
+        final OutputStream out = new LzmaOutputStream.Builder(marked).useMediumDictionarySize().build();
+        out.write(source);
+        out.close();
+
+        for (final byte[] data : new byte[][]{Lzma.compress(source), marked.toByteArray()})
+        {
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            stream.write(data);
+            stream.write(trailer);
+            final ByteArrayInputStream in = new ByteArrayInputStream(stream.toByteArray());
+            final Decoder decoder = new Decoder();
+            final long outSize = LzmaDecoderWrapper.readHeader(in, decoder);
+            final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            assertTrue(decoder.code(in, decoded, outSize));
+            assertTrue(Arrays.equals(source, decoded.toByteArray()));
+            assertTrue(Arrays.equals(trailer, IOUtils.toByteArray(in)));
+        }
+    }
+
+    public void testDecompressUnknownSize()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final OutputStream out = new LzmaOutputStream.Builder(compressed).useMediumDictionarySize().build();
+        out.write(source);
+        out.close();
+
+        assertTrue(Arrays.equals(source, Lzma.decompress(compressed.toByteArray())));
+    }
+
+    public void testKnownInputSize()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final OutputStream out =
+                new LzmaOutputStream.Builder(compressed).useMediumDictionarySize().useInputSize(source.length).build();
+        out.write(source);
+        out.close();
+
+        final byte[] data = compressed.toByteArray();
+        assertEquals(source.length, sizeField(data));
+        assertTrue(Arrays.equals(source, Lzma.decompress(data)));
+    }
+
+    public void testPatchedSizeChannel()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "doc.pdf"));
+        final File file = new File("target/test-classes", "doc.pdf.patched.lzma");
+        file.delete();
+
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        final LzmaWritableByteChannel out = new LzmaWritableByteChannel(channel, new Encoder(), 4096, true);
+        out.write(ByteBuffer.wrap(source));
+        out.close();
+
+        final byte[] data = FileUtils.readFileToByteArray(file);
+        assertEquals(source.length, sizeField(data));
+        assertTrue(Arrays.equals(source, Lzma.decompress(data)));
+    }
+
+    public void testMappedFileDecompression()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "ajar.jar"));
+        final File compressed = new File("target/mapped.lzma");
+        final File decompressed = new File("target/mapped.out");
+
+        FileUtils.writeByteArrayToFile(compressed, Lzma.compress(source));
+        assertEquals(source.length, Lzma.decompress(compressed.toPath(), decompressed.toPath()));
+        assertTrue(Arrays.equals(source, FileUtils.readFileToByteArray(decompressed)));
+
+        // no size in the header: the end marker tells where the file ends
+        final OutputStream out = new LzmaOutputStream.Builder(new FileOutputStream(compressed)).build();
+        out.write(source);
+        out.close();
+        assertEquals(source.length, Lzma.decompress(compressed.toPath(), decompressed.toPath()));
+        assertTrue(Arrays.equals(source, FileUtils.readFileToByteArray(decompressed)));
+
+        // a failure leaves no partial output
+        final byte[] data = Lzma.compress(source);
+        final byte[] corrupted = data.clone();
+        Arrays.fill(corrupted, data.length / 2, data.length / 2 + 1000, (byte) 0x55);
+        for (final byte[] bad : new byte[][]{Arrays.copyOf(data, data.length / 2), corrupted})
+        {
+            FileUtils.writeByteArrayToFile(compressed, bad);
+            try
+            {
+                Lzma.decompress(compressed.toPath(), decompressed.toPath());
+                fail("A damaged file should be rejected");
+            }
+            catch (IOException expected)
+            {
+                // expected
+            }
+            assertFalse(decompressed.exists());
+        }
+    }
+
+    public void testMappedFileAcrossSegments()
+            throws IOException
+    {
+        // long matches straddling the 64 MB boundaries of the mapped segments
+        final byte[] block = new byte[1000];
+        new Random(11).nextBytes(block);
+        final int blocks = 70000;
+        final File compressed = new File("target/segments.lzma");
+        final File decompressed = new File("target/segments.out");
+        final OutputStream out = new LzmaOutputStream.Builder(new FileOutputStream(compressed))
+                .useMediumDictionarySize().useInputSize((long) blocks * block.length).build();
+        for (int i = 0; i < blocks; i++)
+        {
+            out.write(block);
+        }
+        out.close();
+
+        assertEquals((long) blocks * block.length, Lzma.decompress(compressed.toPath(), decompressed.toPath()));
+        assertEquals((long) blocks * block.length, decompressed.length());
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(decompressed)));
+        try
+        {
+            final byte[] read = new byte[block.length];
+            for (int i = 0; i < blocks; i++)
+            {
+                in.readFully(read);
+                assertTrue(Arrays.equals(block, read));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        decompressed.delete();
+    }
+
+    public void testTruncated()
+            throws IOException
+    {
+        final byte[] compressed = Lzma.compress(new byte[10]);
+        try
+        {
+            Lzma.decompress(Arrays.copyOf(compressed, 5));
+            fail("A stream without header should be rejected");
+        }
+        catch (IOException expected)
+        {
+            // expected
+        }
+    }
+
+    public void testSkipAndVerify()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "doc.pdf"));
+        final byte[] compressed = Lzma.compress(source);
+
+        final LzmaInputStream in = new LzmaInputStream(new ByteArrayInputStream(compressed), new Decoder());
+        assertEquals(1000, in.skip(1000));
+        assertEquals(source[1000], (byte) in.read());
+        assertEquals(50000, in.skip(50000));
+        final byte[] rest = IOUtils.toByteArray(in);
+        in.close();
+        assertTrue(Arrays.equals(Arrays.copyOfRange(source, 51001, source.length), rest));
+
+        assertEquals(source.length, Lzma.verify(new ByteArrayInputStream(compressed)));
+        try
+        {
+            Lzma.verify(new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length - 100)));
+            fail("A truncated stream should be rejected");
+        }
+        catch (IOException expected)
+        {
+            // expected
+        }
+    }
+
+    public void testMemoryLimit()
+            throws IOException
+    {
+        final byte[] source = "A small payload".getBytes("UTF-8");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream out = new LzmaOutputStream.Builder(bytes).build();
+        out.write(source);
+        out.close();
+
+        // no size in the header: the whole dictionary would be needed
+        final Decoder decoder = new Decoder();
+        decoder.setMemoryLimit(1 << 20);
+        final LzmaInputStream in = new LzmaInputStream(new ByteArrayInputStream(bytes.toByteArray()), decoder);
+        try
+        {
+            in.read();
+            fail("The dictionary should exceed the memory limit");
+        }
+        catch (IOException expected)
+        {
+            // expected
+        }
+        in.close();
+
+        // the size is known: the window is sized after it
+        final ByteArrayOutputStream sized = new ByteArrayOutputStream();
+        final OutputStream sizedOut = new LzmaOutputStream.Builder(sized)
+                .useInputSize(source.length).build();
+        sizedOut.write(source);
+        sizedOut.close();
+        final Decoder limited = new Decoder();
+        limited.setMemoryLimit(1 << 20);
+        final LzmaInputStream sizedIn = new LzmaInputStream(new ByteArrayInputStream(sized.toByteArray()), limited);
+        assertTrue(Arrays.equals(source, IOUtils.toByteArray(sizedIn)));
+        sizedIn.close();
+    }
+
+    public void testIncrementalFlush()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "doc.pdf"));
+        final ByteArrayInputStream in = new ByteArrayInputStream(Lzma.compress(source));
+        final Decoder decoder = new Decoder();
+        final long size = LzmaDecoderWrapper.readHeader(in, decoder);
+        decoder.setFlushPolicy(1000, -1);
+
+        final int[] flushes = new int[1];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream()
+        {
+            @Override
+            public synchronized void write(byte[] b, int off, int len)
+            {
+                assertTrue(len <= 1000);
+                super.write(b, off, len);
+            }
+
+            @Override
+            public void flush()
+            {
+                flushes[0]++;
+            }
+        };
+        assertTrue(decoder.code(in, out, size));
+        assertTrue(flushes[0] >= source.length / 1000);
+        assertTrue(Arrays.equals(source, out.toByteArray()));
+    }
+
+    public void testLowLatencyFlush()
+            throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream out = new LzmaOutputStream.Builder(bytes).useMinimalDictionarySize()
+                .useLowLatencyFlush().build();
+        final byte[] hello = "Hello, ".getBytes("UTF-8");
+        final byte[] world = "world!".getBytes("UTF-8");
+
+        out.write(hello);
+        out.flush();
+        final byte[] first = new byte[hello.length];
+        final InputStream partial = new LzmaInputStream(new ByteArrayInputStream(bytes.toByteArray()), new Decoder());
+        new DataInputStream(partial).readFully(first);
+        assertTrue(Arrays.equals(hello, first));
+        assertEquals(-1, partial.read());
+
+        out.flush();
+        out.write(world);
+        out.close();
+        final byte[] all =
+                IOUtils.toByteArray(new LzmaInputStream(new ByteArrayInputStream(bytes.toByteArray()), new Decoder(), true));
+        assertEquals("Hello, world!", new String(all, "UTF-8"));
+        // without asking for concatenated streams, the ones after the first are ignored
+        final byte[] head = IOUtils.toByteArray(new LzmaInputStream(new ByteArrayInputStream(bytes.toByteArray()), new Decoder()));
+        assertEquals("Hello, ", new String(head, "UTF-8"));
+    }
+
+    public void testSolidRecords()
+            throws IOException
+    {
+        final byte[] text = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final byte[] jar = FileUtils.readFileToByteArray(new File("target/test-classes", "ajar.jar"));
+        final byte[] source = new byte[text.length + jar.length];
+        System.arraycopy(text, 0, source, 0, text.length);
+        System.arraycopy(jar, 0, source, text.length, jar.length);
+
+        // records of all sizes, the smallest ones shorter than a match, with a window that wraps many times
+        final Random random = new Random(23);
+        final ByteBuffer solid = ByteBuffer.allocate(2 * Lzma.compressBound(source.length));
+        final Encoder encoder = new Encoder();
+        encoder.setDictionarySize(1 << 12);
+        encoder.setSolid(true);
+        int solidText = 0;
+        int separateText = 0;
+        int[] sizes = new int[0];
+        for (int off = 0; off < source.length; )
+        {
+            final int len = Math.min(source.length - off, random.nextBoolean() ? random.nextInt(8) : random.nextInt(4096));
+            final int n = Lzma.compress(ByteBuffer.wrap(source, off, len), solid, encoder);
+            if (off + len <= text.length)
+            {
+                solidText += n;
+                separateText += Lzma.compress(Arrays.copyOfRange(source, off, off + len)).length;
+            }
+            sizes = Arrays.copyOf(sizes, sizes.length + 1);
+            sizes[sizes.length - 1] = len;
+            off += len;
+        }
+        solid.flip();
+        assertTrue(solidText < separateText * 4 / 5);
+
+        final Decoder decoder = new Decoder();
+        decoder.setSolid(true);
+        final ByteBuffer records = solid.duplicate();
+        final ByteBuffer decoded = ByteBuffer.allocate(source.length);
+        for (final int size : sizes)
+        {
+            assertEquals(size, Lzma.readHeader(records, decoder));
+            Lzma.decode(records, decoded, decoder, size);
+        }
+        assertFalse(records.hasRemaining());
+        assertTrue(Arrays.equals(source, decoded.array()));
+
+        final byte[] concatenated = Arrays.copyOfRange(solid.array(), 0, solid.limit());
+        decoder.reset();
+        decoder.setSolid(true);
+        assertTrue(Arrays.equals(source, IOUtils.toByteArray(new LzmaInputStream(new ByteArrayInputStream(concatenated), decoder))));
+        decoder.reset();
+        decoder.setSolid(true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new LzmaDecoderWrapper(decoder).code(new ByteArrayInputStream(concatenated), out);
+        assertTrue(Arrays.equals(source, out.toByteArray()));
+    }
+
+    public void testPresetDictionary()
+            throws IOException
+    {
+        final byte[] dictionary = ("{\"id\": 0, \"user\": \"someone\", \"status\": \"active\", \"roles\": [\"reader\", "
+                + "\"writer\"], \"created\": \"2011-01-01T00:00:00Z\"}").getBytes("UTF-8");
+        final byte[] message = ("{\"id\": 42, \"user\": \"someone else\", \"status\": \"active\", \"roles\": "
+                + "[\"reader\"], \"created\": \"2011-03-14T15:09:26Z\"}").getBytes("UTF-8");
+
+        final byte[] compressed = Lzma.compress(message, dictionary);
+        assertTrue(compressed.length < Lzma.compress(message).length * 3 / 4);
+        assertTrue(Arrays.equals(message, Lzma.decompress(compressed, dictionary)));
+
+        // no size in the header, decoded through the window
+        final Encoder encoder = new Encoder();
+        encoder.setDictionarySize(1 << 16);
+        encoder.setEndMarkerMode(true);
+        encoder.setPresetDictionary(dictionary);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeCoderProperties(out);
+        out.write(LzmaEncoderWrapper.MINUS_ONE);
+        encoder.code(new ByteArrayInputStream(message), out, -1, -1, null);
+        final Decoder decoder = new Decoder();
+        decoder.setPresetDictionary(dictionary);
+        final LzmaInputStream in = new LzmaInputStream(new ByteArrayInputStream(out.toByteArray()), decoder);
+        assertTrue(Arrays.equals(message, IOUtils.toByteArray(in)));
+
+        // a dictionary larger than the dictionary size: only its end is used, on both sides
+        final byte[] text = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final byte[] tail = Arrays.copyOfRange(text, text.length - 3000, text.length - 1000);
+        encoder.setDictionarySize(1 << 12);
+        encoder.setEndMarkerMode(false);
+        encoder.setPresetDictionary(text);
+        final ByteBuffer buffer = ByteBuffer.allocate(Lzma.compressBound(tail.length));
+        Lzma.compress(ByteBuffer.wrap(tail), buffer, encoder);
+        assertTrue(buffer.position() < tail.length / 10);
+        assertTrue(Arrays.equals(tail, Lzma.decompress(Arrays.copyOf(buffer.array(), buffer.position()), text)));
+    }
+
+    public void testSolidFlush()
+            throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream out = new LzmaOutputStream.Builder(bytes).useMediumDictionarySize().useSolidFlush().build();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+        {
+            final String message = "{\"id\": " + i + ", \"status\": \"ok\", \"message\": \"all good\"}\n";
+            out.write(message.getBytes("UTF-8"));
+            out.flush();
+            expected.append(message);
+        }
+        out.close();
+        assertTrue(bytes.size() < 50 * 30);
+
+        final Decoder decoder = new Decoder();
+        decoder.setSolid(true);
+        final byte[] all = IOUtils.toByteArray(new LzmaInputStream(new ByteArrayInputStream(bytes.toByteArray()), decoder));
+        assertEquals(expected.toString(), new String(all, "UTF-8"));
+    }
+
+    public void testPatchedSizeStream()
+            throws IOException
+    {
+        // the size is patched into the header of a stream which still ends with an end marker
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final byte[] data = patchedSizeStream(source);
+        assertEquals(source.length, sizeField(data));
+        final InputStream in = new LzmaInputStream(new ByteArrayInputStream(data), new Decoder());
+        assertTrue(Arrays.equals(source, IOUtils.toByteArray(in)));
+        in.close();
+
+        // trailing data after a stream is ignored
+        final byte[] compressed = Lzma.compress(source);
+        final byte[] trailing = Arrays.copyOf(compressed, compressed.length + 20);
+        Arrays.fill(trailing, compressed.length, trailing.length, (byte) 0x5A);
+        assertTrue(Arrays.equals(source, IOUtils.toByteArray(new LzmaInputStream(new ByteArrayInputStream(trailing), new Decoder()))));
+    }
+
+    public void testDecoderWrapperMembers()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new LzmaDecoderWrapper(new Decoder()).code(new ByteArrayInputStream(patchedSizeStream(source)), out);
+        assertTrue(Arrays.equals(source, out.toByteArray()));
+
+        // two members then trailing data
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream lzma = new LzmaOutputStream.Builder(bytes).useMediumDictionarySize().useLowLatencyFlush().build();
+        lzma.write(source, 0, 1000);
+        lzma.flush();
+        lzma.write(source, 1000, source.length - 1000);
+        lzma.close();
+        bytes.write(new byte[]{1, 2, 3});
+        out.reset();
+        new LzmaDecoderWrapper(new Decoder(), true).code(new ByteArrayInputStream(bytes.toByteArray()), out);
+        assertTrue(Arrays.equals(source, out.toByteArray()));
+
+        // by default, only the first one is decoded and the input is left right after it
+        out.reset();
+        final ByteArrayInputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        new LzmaDecoderWrapper(new Decoder()).code(in, out);
+        assertTrue(Arrays.equals(Arrays.copyOf(source, 1000), out.toByteArray()));
+        final InputStream rest = new LzmaInputStream(in, new Decoder());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(source, 1000, source.length), IOUtils.toByteArray(rest)));
+
+        // data looking like another stream, but failing before any output, is ignored like any trailing data
+        final byte[] data = Lzma.compress(source);
+        final byte[] garbage = new byte[200];
+        new Random(13).nextBytes(garbage);
+        final ByteArrayOutputStream fake = new ByteArrayOutputStream();
+        fake.write(data);
+        fake.write(data, 0, Lzma.HEADER_SIZE);
+        fake.write(0);
+        fake.write(garbage);
+        out.reset();
+        new LzmaDecoderWrapper(new Decoder(), true).code(new ByteArrayInputStream(fake.toByteArray()), out);
+        assertTrue(Arrays.equals(source, out.toByteArray()));
+        final InputStream stream = new LzmaInputStream(new ByteArrayInputStream(fake.toByteArray()), new Decoder(), true);
+        assertTrue(Arrays.equals(source, IOUtils.toByteArray(stream)));
+    }
+
+    public void testTruncatedStream()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final byte[] compressed = Lzma.compress(source);
+        final byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        final LzmaInputStream in = new LzmaInputStream(new ByteArrayInputStream(truncated), new Decoder());
+        try
+        {
+            IOUtils.toByteArray(in);
+            fail("A truncated stream should be rejected");
+        }
+        catch (EOFException expected)
+        {
+            // expected
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // once a read has failed, the buffer it was given is not written to anymore, even if more input shows up,
+        // whether the output was decoded in place or through the window
+        for (final int len : new int[]{source.length, source.length - 1})
+        {
+            final byte[][] available = {truncated};
+            final InputStream stream = new InputStream()
+            {
+                private int pos;
+
+                @Override
+                public int read()
+                {
+                    return (pos < available[0].length) ? available[0][pos++] & 0xFF : -1;
+                }
+            };
+            final Decoder decoder = new Decoder();
+            decoder.beginDecoding(stream, LzmaDecoderWrapper.readHeader(stream, decoder));
+            final byte[] buffer = new byte[source.length];
+            try
+            {
+                decoder.decode(buffer, 0, len);
+                fail("A truncated stream should be rejected");
+            }
+            catch (EOFException expected)
+            {
+                // expected
+            }
+            final byte[] failed = buffer.clone();
+            available[0] = compressed;
+            try
+            {
+                decoder.skip(source.length);
+            }
+            catch (IOException expected)
+            {
+                // expected
+            }
+            assertTrue(Arrays.equals(failed, buffer));
+        }
+    }
+
+    private void performRoundtrip(final byte[] source)
+            throws IOException
+    {
+        final byte[] compressed = Lzma.compress(source);
+        assertTrue(compressed.length <= Lzma.compressBound(source.length));
+        assertTrue(Arrays.equals(source, Lzma.decompress(compressed)));
+    }
+
+    // a stream ending with an end marker, its size being patched into the header once written
+    private static byte[] patchedSizeStream(final byte[] source)
+            throws IOException
+    {
+        final File file = new File("target/test-classes", "patched.lzma");
+        file.delete();
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        final LzmaWritableByteChannel out = new LzmaWritableByteChannel(channel, new Encoder(), 4096, true);
+        out.write(ByteBuffer.wrap(source));
+        out.close();
+        return FileUtils.readFileToByteArray(file);
+    }
+
+    private static long sizeField(final byte[] data)
+    {
+        return ByteBuffer.wrap(data, Encoder.kPropSize, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    }
+}
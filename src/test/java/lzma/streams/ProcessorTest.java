@@ -0,0 +1,91 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+import junit.framework.TestCase;
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+public class ProcessorTest
+        extends TestCase
+{
+    public void testRoundtrip()
+            throws Exception
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "doc.pdf"));
+        final Encoder encoder = new Encoder();
+        encoder.setDictionarySize(1 << 20);
+
+        final SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>();
+        final LzmaCompressingProcessor compressing = new LzmaCompressingProcessor(encoder, 1000);
+        final LzmaDecompressingProcessor decompressing = new LzmaDecompressingProcessor(new Decoder(), 3000);
+        final Collector collector = new Collector();
+        publisher.subscribe(compressing);
+        compressing.subscribe(decompressing);
+        decompressing.subscribe(collector);
+
+        for (int off = 0; off < source.length; off += 7000)
+        {
+            publisher.submit(ByteBuffer.wrap(source, off, Math.min(7000, source.length - off)));
+        }
+        publisher.close();
+
+        assertTrue(Arrays.equals(source, collector.result.get(60, TimeUnit.SECONDS)));
+    }
+
+    // requests one chunk at a time
+    private static class Collector
+            implements Flow.Subscriber<ByteBuffer>
+    {
+        final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private Flow.Subscription subscription;
+
+        public void onSubscribe(Flow.Subscription subscription)
+        {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        public void onNext(ByteBuffer item)
+        {
+            data.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+            subscription.request(1);
+        }
+
+        public void onError(Throwable throwable)
+        {
+            result.completeExceptionally(throwable);
+        }
+
+        public void onComplete()
+        {
+            result.complete(data.toByteArray());
+        }
+    }
+}
@@ -21,9 +21,17 @@ package lzma.streams;
 import junit.framework.TestCase;
 import lzma.sdk.lzma.Decoder;
 import lzma.sdk.lzma.Encoder;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.apache.commons.io.FileUtils.contentEquals;
 
@@ -64,6 +72,86 @@ public class RoundtripTest
         performAltStreamRoundtrip(new File(srcDir, "doc.pdf"));
     }
 
+    public void testStreamingDecoderOddReads()
+            throws Exception
+    {
+        System.out.println("Stream decoding with odd read sizes");
+        final File srcDir = new File("target/test-classes");
+
+        performOddReadsRoundtrip(new File(srcDir, "plaintext.txt"));
+        performOddReadsRoundtrip(new File(srcDir, "doc.pdf"));
+    }
+
+    public void testPooledStreamingEncoder()
+            throws Exception
+    {
+        System.out.println("Stream compression on a shared executor");
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                final OutputStream out =
+                        new LzmaOutputStream.Builder(compressed).useMediumDictionarySize().useExecutor(executor).build();
+                out.write(source);
+                out.close();
+
+                final InputStream in =
+                        new LzmaInputStream(new ByteArrayInputStream(compressed.toByteArray()), new Decoder());
+                assertTrue("Source and uncompressed content does not equals!",
+                        Arrays.equals(source, IOUtils.toByteArray(in)));
+                in.close();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testChannelRoundtrip()
+            throws Exception
+    {
+        System.out.println("Channel roundtrip");
+        final File srcDir = new File("target/test-classes");
+
+        performChannelRoundtrip(new File(srcDir, "plaintext.txt"));
+        performChannelRoundtrip(new File(srcDir, "ajar.jar"));
+    }
+
+    public void testByteBufferRoundtrip()
+            throws Exception
+    {
+        System.out.println("Direct ByteBuffer roundtrip (low-level API)");
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "doc.pdf"));
+
+        final ByteBuffer in = ByteBuffer.allocateDirect(source.length);
+        in.put(source).flip();
+        final ByteBuffer compressed = ByteBuffer.allocateDirect(source.length + source.length / 3 + 128);
+        final Encoder encoder = new Encoder();
+        encoder.setDictionarySize(1 << 20);
+        encoder.setEndMarkerMode(true);
+        encoder.writeCoderProperties(compressed);
+        encoder.code(in, compressed, -1, -1, null);
+        assertFalse(in.hasRemaining());
+        compressed.flip();
+
+        final byte[] properties = new byte[Encoder.kPropSize];
+        compressed.get(properties);
+        final Decoder decoder = new Decoder();
+        assertTrue(decoder.setDecoderProperties(properties));
+        final ByteBuffer out = ByteBuffer.allocateDirect(source.length);
+        assertTrue(decoder.code(compressed, out, -1));
+        assertFalse(compressed.hasRemaining());
+
+        out.flip();
+        final byte[] decompressed = new byte[out.remaining()];
+        out.get(decompressed);
+        assertTrue("Source and uncompressed content does not equals!", Arrays.equals(source, decompressed));
+    }
+
     public void performRoundtrip(final File sourceFile)
             throws IOException
     {
@@ -197,4 +285,71 @@ public class RoundtripTest
         assertFalse("Source and compressed content equals!", contentEquals(sourceFile, compressedFile));
     }
 
+    public void performOddReadsRoundtrip(final File sourceFile)
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(sourceFile);
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final OutputStream out = new LzmaOutputStream.Builder(compressed).build();
+        out.write(source);
+        out.close();
+
+        final InputStream in = new LzmaInputStream(new ByteArrayInputStream(compressed.toByteArray()), new Decoder());
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[300];
+        int len = 1;
+        int n;
+        while ((n = in.read(buffer, 0, len)) != -1)
+        {
+            decompressed.write(buffer, 0, n);
+            len = (len * 7 + 3) % buffer.length + 1;
+            int b = in.read();
+            if (b == -1)
+            {
+                break;
+            }
+            decompressed.write(b);
+        }
+        in.close();
+
+        assertTrue("Source and uncompressed content does not equals!",
+                Arrays.equals(source, decompressed.toByteArray()));
+    }
+
+    public void performChannelRoundtrip(final File sourceFile)
+            throws IOException
+    {
+        final File compressedFile = new File(sourceFile.getParentFile(), sourceFile.getName() + ".channel.lzma");
+        final File decompressedFile = new File(sourceFile.getParentFile(), sourceFile.getName() + ".channel.unlzma");
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(10000);
+
+        final FileChannel source = new FileInputStream(sourceFile).getChannel();
+        final WritableByteChannel compressed =
+                new LzmaWritableByteChannel(new FileOutputStream(compressedFile).getChannel(), new Encoder());
+        while (source.read(buffer) != -1)
+        {
+            buffer.flip();
+            compressed.write(buffer);
+            buffer.clear();
+        }
+        source.close();
+        compressed.close();
+
+        final ReadableByteChannel decompressed =
+                new LzmaReadableByteChannel(new FileInputStream(compressedFile).getChannel(), new Decoder(), 4096);
+        final FileChannel target = new FileOutputStream(decompressedFile).getChannel();
+        while (decompressed.read(buffer) != -1)
+        {
+            buffer.flip();
+            target.write(buffer);
+            buffer.clear();
+        }
+        decompressed.close();
+        target.close();
+
+        assertTrue("Source and uncompressed content does not equals!", contentEquals(sourceFile, decompressedFile));
+        assertFalse("Source and compressed content equals!", contentEquals(sourceFile, compressedFile));
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ *  Copyright (c) 2010-2011 Julien Ponge. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package lzma.streams;
+
+import junit.framework.TestCase;
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.DecoderCheckpoint;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SeekableLzmaTest
+        extends TestCase
+{
+    public void testRandomReads()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "ajar.jar"));
+        final File file = new File("target/seekable.lzms");
+        final SeekableLzmaOutputStream out = new SeekableLzmaOutputStream(new FileOutputStream(file), 10000);
+        out.write(source, 0, 12345);
+        out.write(source, 12345, source.length - 12345);
+        out.close();
+
+        final SeekableLzmaChannel channel = new SeekableLzmaChannel(FileChannel.open(file.toPath(), StandardOpenOption.READ), 2);
+        try
+        {
+            assertEquals(source.length, channel.size());
+            assertEquals((source.length + 9999) / 10000, channel.getBlockCount());
+
+            final Random random = new Random(3);
+            for (int i = 0; i < 100; i++)
+            {
+                final int pos = random.nextInt(source.length);
+                final ByteBuffer dst = ByteBuffer.allocate(random.nextInt(30000) + 1);
+                channel.position(pos);
+                final int n = channel.read(dst);
+                assertEquals(Math.min(dst.capacity(), source.length - pos), n);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(source, pos, pos + n), Arrays.copyOf(dst.array(), n)));
+            }
+
+            channel.position(source.length);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    public void testCheckpointIndex()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "doc.pdf"));
+        final File file = new File("target/checkpointed.lzma");
+        final File sidecar = new File("target/checkpointed.lzmc");
+        FileUtils.writeByteArrayToFile(file, Lzma.compress(source));
+
+        final FileInputStream in = new FileInputStream(file);
+        final FileOutputStream out = new FileOutputStream(sidecar);
+        assertEquals(source.length / 8000, LzmaCheckpointIndex.build(in, out, 8000));
+        in.close();
+        out.close();
+
+        final FileChannel sidecarChannel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ);
+        final LzmaCheckpointIndex index = new LzmaCheckpointIndex(sidecarChannel);
+        assertEquals(source.length, index.getUncompressedSize());
+        final Random random = new Random(5);
+        for (int i = 0; i < 20; i++)
+        {
+            final int pos = (i == 0) ? 0 : random.nextInt(source.length);
+            final InputStream stream = index.openAt(FileChannel.open(file.toPath(), StandardOpenOption.READ), pos);
+            final byte[] read = IOUtils.toByteArray(stream);
+            stream.close();
+            assertTrue(Arrays.equals(Arrays.copyOfRange(source, pos, source.length), read));
+        }
+        sidecarChannel.close();
+    }
+
+    public void testCheckpointWithPresetDictionary()
+            throws IOException
+    {
+        final byte[] source = FileUtils.readFileToByteArray(new File("target/test-classes", "plaintext.txt"));
+        final byte[] dictionary = Arrays.copyOf(source, 2000);
+        final byte[] data = Lzma.compress(source, dictionary);
+
+        final Decoder decoder = new Decoder();
+        decoder.setPresetDictionary(dictionary);
+        final long size = LzmaDecoderWrapper.readHeader(new ByteArrayInputStream(data), decoder);
+        decoder.beginDecoding(new ByteArrayInputStream(data, Lzma.HEADER_SIZE, data.length), size);
+        final byte[] decoded = new byte[source.length];
+        assertEquals(100, decoder.decode(decoded, 0, 100));
+
+        // the history holds the preset dictionary, reaching back before the start of the output
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        decoder.checkpoint().writeTo(new DataOutputStream(bytes));
+        final DecoderCheckpoint checkpoint =
+                DecoderCheckpoint.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        final Decoder resumed = new Decoder();
+        resumed.setPresetDictionary(dictionary);
+        resumed.setDecoderProperties(Arrays.copyOf(data, 5));
+        final int offset = Lzma.HEADER_SIZE + (int) checkpoint.getInputPosition();
+        resumed.resume(checkpoint, new ByteArrayInputStream(data, offset, data.length - offset), size);
+        int pos = 100;
+        int n;
+        while ((n = resumed.decode(decoded, pos, decoded.length - pos)) > 0)
+        {
+            pos += n;
+        }
+        assertEquals(source.length, pos);
+        assertTrue(Arrays.equals(source, decoded));
+    }
+
+    public void testEmpty()
+            throws IOException
+    {
+        final File file = new File("target/empty.lzms");
+        new SeekableLzmaOutputStream(new FileOutputStream(file)).close();
+
+        final SeekableLzmaChannel channel = new SeekableLzmaChannel(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        assertEquals(0, channel.size());
+        assertEquals(0, channel.getBlockCount());
+        assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+        channel.close();
+
+        assertFalse(channel.isOpen());
+        try
+        {
+            channel.size();
+            fail("A closed channel should have no size");
+        }
+        catch (ClosedChannelException expected)
+        {
+            // expected
+        }
+        try
+        {
+            channel.position();
+            fail("A closed channel should have no position");
+        }
+        catch (ClosedChannelException expected)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright (c) 2011 Tamas Cservenak. All rights reserved.
+ *
+ *  <tamas@cservenak.com>
+ *  http://www.cservenak.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cservenak.streams;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ChunkPipeTest
+        extends TestCase
+{
+    public void testTransfer()
+            throws Exception
+    {
+        final ChunkPipe pipe = new ChunkPipe(1000, 2);
+        final byte[] data = new byte[1 << 20];
+        new Random(42).nextBytes(data);
+
+        final Throwable[] failure = new Throwable[1];
+        final Thread producer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    final OutputStream out = pipe.getSink();
+                    int off = 0;
+                    int len = 1;
+                    while (off < data.length)
+                    {
+                        final int n = Math.min(len, data.length - off);
+                        if (n == 1)
+                        {
+                            out.write(data[off]);
+                        }
+                        else
+                        {
+                            out.write(data, off, n);
+                        }
+                        off += n;
+                        len = (len * 13 + 7) % 3001;
+                        if (len % 5 == 0)
+                        {
+                            out.flush();
+                        }
+                    }
+                    out.close();
+                }
+                catch (Throwable e)
+                {
+                    failure[0] = e;
+                }
+            }
+        };
+        producer.start();
+
+        final InputStream in = pipe.getSource();
+        final byte[] received = new byte[data.length];
+        int off = 0;
+        int len = 1;
+        while (true)
+        {
+            final int n;
+            if (len == 1)
+            {
+                final int b = in.read();
+                if (b != -1)
+                {
+                    received[off] = (byte) b;
+                }
+                n = (b == -1) ? -1 : 1;
+            }
+            else
+            {
+                n = in.read(received, off, Math.min(len, received.length - off));
+            }
+            if (n == -1)
+            {
+                break;
+            }
+            off += n;
+            len = (len * 7 + 3) % 2500 + 1;
+            if (off == received.length)
+            {
+                assertEquals(-1, in.read());
+                break;
+            }
+        }
+        in.close();
+        producer.join();
+
+        assertNull(failure[0]);
+        assertEquals(data.length, off);
+        assertTrue(Arrays.equals(data, received));
+    }
+
+    public void testWriteAfterReaderClosed()
+            throws Exception
+    {
+        final ChunkPipe pipe = new ChunkPipe(16, 1);
+        pipe.getSource().close();
+        try
+        {
+            pipe.getSink().write(new byte[64]);
+            fail("Writing to a pipe without reader should fail");
+        }
+        catch (IOException expected)
+        {
+            // expected
+        }
+    }
+
+    public void testAbortWakesBlockedReader()
+            throws Exception
+    {
+        final ChunkPipe pipe = new ChunkPipe(16, 1);
+        final Throwable[] failure = new Throwable[1];
+        final Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    pipe.getSource().read();
+                }
+                catch (Throwable e)
+                {
+                    failure[0] = e;
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+        pipe.abort();
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertTrue(failure[0] instanceof IOException);
+    }
+}